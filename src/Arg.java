@@ -23,76 +23,107 @@ public class Arg {
   }
 
   int mode;
-  Integer val;
-  String tag;
+  int val;
+  // whether val is known; a tagged argument is not until it is linked
+  boolean resolved;
+  // symbol the value is resolved from when linking, or null for a constant
+  Symbol tag;
   int tagoffset;
-  String sub;
+  // subroutine whose local map the tag is looked up in, or null for globals
+  Symbol sub;
+  // block a code address refers to, while the program is a ControlFlowGraph
+  BasicBlock block;
   ArrayList<Arg> scratches = new ArrayList<Arg>();
 
-  Arg(Integer val) {
+  Arg(int val) {
     this.val = val;
-    this.tag = "";
+    this.resolved = true;
   }
 
-  Arg(String tag, int tagoffset) {
+  Arg(Symbol tag, int tagoffset) {
     this.tag = tag;
     this.tagoffset = tagoffset;
   }
 
-  Arg(String tag, int tagoffset, String sub) {
+  Arg(Symbol tag, int tagoffset, Symbol sub) {
     this.tag = tag;
     this.tagoffset = tagoffset;
     this.sub = sub;
   }
 
-  Arg(int mode, Integer val) {
+  Arg(int mode, int val) {
     this.mode = mode;
     this.val = val;
-    this.tag = "";
+    this.resolved = true;
   }
 
-  Arg(int mode, String tag, int tagoffset) {
+  Arg(int mode, Symbol tag, int tagoffset) {
     this.mode = mode;
     this.tag = tag;
     this.tagoffset = tagoffset;
   }
 
-  Arg(int mode, String tag, int tagoffset, String sub) {
+  Arg(int mode, Symbol tag, int tagoffset, Symbol sub) {
     this.mode = mode;
     this.tag = tag;
     this.tagoffset = tagoffset;
     this.sub = sub;
   }
 
-  Arg(int mode, Integer val, String tag, int tagoffset, String sub) {
-    this.mode = mode;
-    this.val = val;
-    this.tag = tag;
-    this.tagoffset = tagoffset;
-    this.sub = sub;
+  /**
+   * @param value
+   *          Final value of a tagged argument
+   */
+  void resolve(int value) {
+    val = value;
+    resolved = true;
+  }
+
+  /**
+   * @param address
+   *          RAM address
+   * @return Whether reading the address may give something other than what
+   *         was last written to it: the program counter changes with every
+   *         command, and the display is also where input is read from
+   */
+  static boolean isVolatile(int address) {
+    return address == 0 || address == 1;
   }
 
   public String toString() {
-    String res = getModePrefix(mode);
-    if (val != null) {
-      res += val;
+    return appendTo(new StringBuilder()).toString();
+  }
+
+  /**
+   * @param res
+   *          Buffer to write the QFTASM form of this argument into
+   * @return The same buffer
+   */
+  StringBuilder appendTo(StringBuilder res) {
+    res.append(getModePrefix(mode));
+    if (resolved) {
+      res.append(val);
     } else {
-      res += "(";
+      res.append('(');
       if (sub != null) {
-        res += sub + ".";
+        res.append(sub.name).append('.');
       }
-      res += tag;
+      res.append(tag.name);
       if (tagoffset < 0) {
-        res += tagoffset;
+        res.append(tagoffset);
       } else if (tagoffset > 0) {
-        res += "+" + tagoffset;
+        res.append('+').append(tagoffset);
       }
-      res += ")";
+      res.append(')');
     }
     return res;
   }
 
   Arg dup() {
-    return new Arg(mode, val, tag, tagoffset, sub);
+    Arg res = new Arg(mode, tag, tagoffset, sub);
+    res.val = val;
+    res.resolved = resolved;
+    res.block = block;
+    return res;
   }
 }
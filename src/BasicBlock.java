@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+
+/**
+ * A run of commands that is only entered at its first command and only left
+ * after its last. A block that ends in a jump ends with the jump's delay
+ * slot, so the jump, if any, is always the second to last command.
+ */
+public class BasicBlock {
+
+  // position in the layout
+  int id;
+  final ArrayList<Command> code = new ArrayList<Command>();
+  // block that control falls through to when the block does not jump, or
+  // null if it always jumps
+  BasicBlock next;
+  // filled in by ControlFlowGraph.connect()
+  final ArrayList<BasicBlock> successors = new ArrayList<BasicBlock>();
+  final ArrayList<BasicBlock> predecessors = new ArrayList<BasicBlock>();
+  // whether the block's address is kept as data, such as a return address,
+  // so that a jump to a computed address may reach it
+  boolean addressTaken;
+  // ROM address of the first command, as built or last laid out
+  int address;
+
+  BasicBlock(int id) {
+    this.id = id;
+  }
+
+  /**
+   * @return The jump that ends the block, or null if it has none
+   */
+  Command jump() {
+    if (code.size() >= 2 && code.get(code.size() - 2).isJump()) {
+      return code.get(code.size() - 2);
+    }
+    return null;
+  }
+
+  /**
+   * @return The block the jump that ends this one goes to, or null if it has
+   *         no jump or its target is computed at run time
+   */
+  BasicBlock target() {
+    Command jump = jump();
+    return jump != null && jump.isDirectJump() ? jump.arg2.block : null;
+  }
+
+  /**
+   * @return Whether the block ends in a jump to a computed address, such as a
+   *         return
+   */
+  boolean jumpsIndirectly() {
+    Command jump = jump();
+    return jump != null && !jump.isDirectJump();
+  }
+
+  /**
+   * @return Labels of the commands in the block
+   */
+  ArrayList<Symbol> labels() {
+    ArrayList<Symbol> res = new ArrayList<Symbol>();
+    for (Command c : code) {
+      res.addAll(c.tags);
+    }
+    return res;
+  }
+
+  public String toString() {
+    return "B" + id + "@" + address;
+  }
+}
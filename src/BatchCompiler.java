@@ -0,0 +1,231 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many sources at once on a fork-join pool. Each output is written
+ * next to its source, with the extension changed to .qftasm.
+ */
+public class BatchCompiler {
+
+  /**
+   * Outcome of compiling a single file
+   */
+  static class Result {
+    Path source;
+    long nanos;
+    int instructions;
+    int RAMsize;
+    String failure;
+    boolean cached;
+    // errors and warnings reported while compiling the file
+    String diagnostics = "";
+  }
+
+  /**
+   * @param patterns
+   *          Source files, directories holding .cgl files, or glob patterns
+   * @param cache
+   *          Cache of earlier compiles, or null to compile everything
+   * @return Whether every file compiled
+   * @throws IOException
+   */
+  public static boolean run(List<String> patterns, CompileCache cache)
+      throws IOException {
+    List<Path> sources = new ArrayList<Path>();
+    for (String pattern : patterns) {
+      expand(pattern, sources);
+    }
+    if (sources.isEmpty()) {
+      System.err.println("error: no sources match " + patterns);
+      return false;
+    }
+    ForkJoinPool pool = new ForkJoinPool();
+    List<Future<Result>> pending = new ArrayList<Future<Result>>();
+    long start = System.nanoTime();
+    for (Path source : sources) {
+      pending.add(pool.submit(() -> compile(source, cache)));
+    }
+    List<Result> results = new ArrayList<Result>();
+    for (Future<Result> f : pending) {
+      try {
+        results.add(f.get());
+      } catch (InterruptedException | ExecutionException e) {
+        throw new IOException(e);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+    return summarize(results, elapsed, pool.getParallelism());
+  }
+
+  /**
+   * @param source
+   *          A .cgl file
+   * @param cache
+   *          Cache of earlier compiles, or null
+   * @return Statistics for the compilation, which has written the .qftasm
+   */
+  static Result compile(Path source, CompileCache cache) {
+    Result res = new Result();
+    res.source = source;
+    long start = System.nanoTime();
+    ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    try (Reader in = new FileReader(source.toFile())) {
+      if (cache != null) {
+        CompileCache.Entry entry = cache.compile(Lexer.readAll(in),
+            Compiler.CODEGEN_OPTIONS);
+        diagnostics.write(entry.diagnostics.getBytes());
+        entry.write(outputFor(source));
+        res.instructions = entry.instructions;
+        res.RAMsize = entry.RAMsize;
+        res.cached = entry.hit;
+      } else {
+        PrintStream err = new PrintStream(diagnostics, true);
+        Program program = new CompilationContext(err).compile(in);
+        try (Writer out = new BufferedWriter(
+            new FileWriter(outputFor(source)))) {
+          program.write(out);
+        }
+        try (Writer out = new BufferedWriter(new FileWriter(
+            Program.sourceMapFile(outputFor(source))))) {
+          program.writeSourceMap(out);
+        }
+        res.instructions = program.ROM.size();
+        res.RAMsize = program.RAMmap.size();
+      }
+    } catch (Exception e) {
+      res.failure = e.toString();
+    }
+    res.diagnostics = diagnostics.toString();
+    for (String line : res.diagnostics.split("\n")) {
+      if (res.failure == null && line.regionMatches(true, 0, "error", 0, 5)) {
+        res.failure = "compile errors";
+      }
+    }
+    res.nanos = System.nanoTime() - start;
+    return res;
+  }
+
+  /**
+   * @param source
+   *          A source file path
+   * @return The path of its output
+   */
+  static String outputFor(Path source) {
+    String name = source.toString();
+    if (name.endsWith(".cgl")) {
+      name = name.substring(0, name.length() - 4);
+    }
+    return name + ".qftasm";
+  }
+
+  /**
+   * Adds the files named by one command-line argument, in sorted order
+   */
+  static void expand(String pattern, List<Path> sources) throws IOException {
+    Path path = Paths.get(pattern);
+    List<Path> found = new ArrayList<Path>();
+    if (Files.isDirectory(path)) {
+      try (DirectoryStream<Path> dir = Files.newDirectoryStream(path,
+          "*.cgl")) {
+        for (Path p : dir) {
+          found.add(p);
+        }
+      }
+    } else if (Files.exists(path)) {
+      found.add(path);
+    } else {
+      // walk from the deepest directory that has no wildcards in it
+      Path base = Paths.get("");
+      for (Path part : path) {
+        if (part.toString().matches(".*[*?\\[{].*")) {
+          break;
+        }
+        base = base.resolve(part);
+      }
+      if (path.isAbsolute()) {
+        base = path.getRoot().resolve(base);
+      }
+      boolean relative = base.toString().isEmpty();
+      Path root = relative ? Paths.get(".") : base;
+      PathMatcher matcher = FileSystems.getDefault()
+          .getPathMatcher("glob:" + pattern);
+      if (Files.isDirectory(root)) {
+        try (Stream<Path> walk = Files.walk(root)) {
+          walk.map(p -> relative ? root.relativize(p) : p)
+              .filter(p -> matcher.matches(p) && Files.isRegularFile(p))
+              .forEach(found::add);
+        }
+      }
+    }
+    found.sort(null);
+    sources.addAll(found);
+  }
+
+  /**
+   * Prints a table of per-file statistics, after the diagnostics of each
+   * file in one block with the path of the file before every line
+   * 
+   * @return Whether every file compiled without errors
+   */
+  static boolean summarize(List<Result> results, long elapsed, int threads) {
+    for (Result r : results) {
+      if (!r.diagnostics.isEmpty()) {
+        StringBuilder block = new StringBuilder();
+        for (String line : r.diagnostics.split("\n")) {
+          block.append(r.source).append(": ").append(line).append('\n');
+        }
+        System.err.print(block);
+      }
+    }
+    System.err.flush();
+    int width = "source".length();
+    for (Result r : results) {
+      width = Math.max(width, r.source.toString().length());
+    }
+    String format = "%-" + width + "s %10s %8s %8s%n";
+    System.out.printf(format, "source", "ms", "ROM", "RAM");
+    boolean ok = true;
+    long total = 0;
+    int cached = 0;
+    for (Result r : results) {
+      total += r.nanos;
+      if (r.cached) {
+        cached++;
+      }
+      if (r.failure == null) {
+        System.out.printf(format, r.source, String.format("%.2f",
+            r.nanos / 1e6), r.instructions, r.RAMsize);
+      } else {
+        ok = false;
+        System.out.printf(format, r.source, "failed", "-", "-");
+        System.err.println("error: " + r.source + ": " + r.failure);
+      }
+    }
+    System.out.printf("%d files in %.2f ms on %d threads (%.2f ms of work)%n",
+        results.size(), elapsed / 1e6, threads, total / 1e6);
+    if (cached > 0) {
+      System.out.printf("%d files were unchanged and taken from the cache%n",
+          cached);
+    }
+    return ok;
+  }
+}
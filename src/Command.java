@@ -1,113 +1,101 @@
 import java.util.ArrayList;
 
 public class Command {
-  String opcode;
+  Opcode opcode;
   Arg arg1;
   Arg arg2;
   Arg arg3;
   // String tag;
-  ArrayList<String> tags = new ArrayList<String>();
+  ArrayList<Symbol> tags = new ArrayList<Symbol>();
+  // statement this was compiled from, or null
+  SourcePosition source;
 
-  public Command(String opcode, Arg arg1, Arg arg2, Arg arg3) {
+  // arguments are shared, not copied, so they are never modified in place
+  public Command(Opcode opcode, Arg arg1, Arg arg2, Arg arg3) {
     super();
     this.opcode = opcode;
-    this.arg1 = arg1.dup();
-    this.arg2 = arg2.dup();
-    this.arg3 = arg3.dup();
+    this.arg1 = arg1;
+    this.arg2 = arg2;
+    this.arg3 = arg3;
   }
 
-  public Command(String opcode, Arg arg1, Arg arg2, Arg arg3, String tag) {
-    super();
-    this.opcode = opcode;
-    this.arg1 = arg1.dup();
-    this.arg2 = arg2.dup();
-    this.arg3 = arg3.dup();
+  public Command(Opcode opcode, Arg arg1, Arg arg2, Arg arg3, Symbol tag) {
+    this(opcode, arg1, arg2, arg3);
     this.tags.add(tag);
   }
 
   /**
-   * Optimize the performance of this command
+   * @return Whether this is a conditional move whose condition is a constant
+   *         that never holds, which makes it a nop
    */
-  void simplify() {
-    if (opcode.equals("SUB") && arg2.mode == 0) {
-      opcode = "ADD";
-      arg2 = arg2.dup();
-      arg2.val *= -1;
-    }
-    if (isSymmetric()) {
-      if (arg1.mode < arg2.mode) {
-        Arg temp = arg1;
-        arg1 = arg2;
-        arg2 = temp;
-      } else if (arg1.mode == arg2.mode && arg1.val < arg2.val) {
-        Arg temp = arg1;
-        arg1 = arg2;
-        arg2 = temp;
-      }
-    }
-    if (opcode.equals("MLZ") && arg1.mode == 0) {
-      if (arg1.val < 0) {
-        arg1.val = -1;
-      } else {
-        arg1.val = 0;
-        arg2 = new Arg(0);
-        arg3 = new Arg(0);
-      }
-    }
-    if (opcode.equals("MNZ") && arg1.mode == 0) {
-      opcode = "MLZ";
-      if (arg1.val != 0) {
-        arg1.val = -1;
-      } else {
-        arg2 = new Arg(0);
-        arg3 = new Arg(0);
-      }
-    }
+  boolean neverMoves() {
+    return arg1.mode == 0 && (opcode == Opcode.MLZ && arg1.val >= 0
+        || opcode == Opcode.MNZ && arg1.val == 0);
   }
 
   /**
-   * @return Whether the opcode is symmetric
+   * @return Whether this always writes its destination
    */
-  boolean isSymmetric() {
-    return opcode.equals("ADD") || opcode.equals("AND") || opcode.equals("OR")
-        || opcode.equals("XOR");
+  boolean alwaysMoves() {
+    return opcode != Opcode.MLZ && opcode != Opcode.MNZ
+        || arg1.mode == 0 && !neverMoves();
+  }
+
+  /**
+   * @return Whether this can write the program counter, which makes it a jump
+   *         whose delay slot is the next command
+   */
+  boolean isJump() {
+    return arg3.resolved && arg3.mode == 0 && arg3.val == 0 && !neverMoves();
+  }
+
+  /**
+   * @return Whether this is a jump to a constant address, which is the value
+   *         of its second argument
+   */
+  boolean isDirectJump() {
+    return isJump() && (opcode == Opcode.MLZ || opcode == Opcode.MNZ)
+        && arg2.mode == 0;
   }
 
   public String toString() {
-    String res = opcode + " " + arg1 + " " + arg2 + " " + arg3 + ";";
-    for (String tag : tags) {
-      res += " " + tag;
+    return appendTo(new StringBuilder()).toString();
+  }
+
+  /**
+   * @param res
+   *          Buffer to write the QFTASM form of this command into
+   * @return The same buffer
+   */
+  StringBuilder appendTo(StringBuilder res) {
+    res.append(opcode.name()).append(' ');
+    arg1.appendTo(res).append(' ');
+    arg2.appendTo(res).append(' ');
+    arg3.appendTo(res).append(';');
+    for (Symbol tag : tags) {
+      res.append(' ').append(tag.name);
     }
     return res;
   }
 
   public Command dupWithoutTags() {
-    return new Command(opcode, arg1, arg2, arg3);
+    Command res = new Command(opcode, arg1.dup(), arg2.dup(), arg3.dup());
+    res.source = source;
+    return res;
   }
 
-  public boolean isEquivalent(String oc, Integer a1m, Integer a1v, Integer a2m,
-      Integer a2v, Integer a3m, Integer a3v) {
-    if (oc != null && !opcode.equals(oc)) {
-      return false;
-    }
-    if (a1m != null && !a1m.equals(arg1.mode)) {
-      return false;
-    }
-    if (a1v != null && !a1v.equals(arg1.val)) {
-      return false;
-    }
-    if (a2m != null && !a2m.equals(arg2.mode)) {
-      return false;
-    }
-    if (a2v != null && !a2v.equals(arg2.val)) {
-      return false;
-    }
-    if (a3m != null && !a3m.equals(arg3.mode)) {
-      return false;
-    }
-    if (a3v != null && !a3v.equals(arg3.val)) {
-      return false;
-    }
-    return true;
+  /**
+   * @return Whether this command matches the given opcode and arguments,
+   *         where null matches anything
+   */
+  public boolean isEquivalent(Opcode oc, Integer a1m, Integer a1v,
+      Integer a2m, Integer a2v, Integer a3m, Integer a3v) {
+    return (oc == null || opcode == oc) && matches(arg1, a1m, a1v)
+        && matches(arg2, a2m, a2v) && matches(arg3, a3m, a3v);
+  }
+
+  private static boolean matches(Arg arg, Integer mode, Integer val) {
+    return (mode == null || mode == arg.mode)
+        && (val == null || val == arg.val);
   }
 }
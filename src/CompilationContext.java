@@ -0,0 +1,2125 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Holds all of the state needed to compile one program. Separate contexts
+ * share nothing, so any number of programs can be compiled at once.
+ * 
+ * @author PhiNotPi
+ * 
+ */
+public class CompilationContext {
+
+  TokenStream tokens;
+  int nextLoopID = 0;
+  // where errors and warnings are reported
+  final PrintStream err;
+
+  final Map<String, Integer> address = new HashMap<String, Integer>();
+  int firstFreeRAM = 0;
+  final ArrayList<Command> mainROM = new ArrayList<Command>();
+  final ArrayList<Command> ROMpredefs = new ArrayList<Command>();
+  final Map<String, String> type = new HashMap<String, String>();
+  final ArrayList<String> RAMmap = new ArrayList<String>();
+  static final String ProgramCounter = "pc";
+  static final String CallStackPointer = "call";
+  static final String stdout = "display";
+  static final String wordType = "word";
+  static final String arrayType = "array";
+  // labels and tag names, interned so that linking is done by array index
+  final SymbolTable symbols = new SymbolTable();
+  final Symbol programCounter = symbols.intern(ProgramCounter);
+  final Symbol callStack = symbols.intern(CallStackPointer);
+  final Set<String> reserved = new HashSet<String>();
+  // addresses of the scratch words, and which of them hold a value of the
+  // statement being compiled
+  final ArrayList<Integer> scratch = new ArrayList<Integer>();
+  final BitSet busyScratch = new BitSet();
+  final ArrayList<OpenLoop> loops = new ArrayList<OpenLoop>();
+  final ArrayList<Subroutine> subs = new ArrayList<Subroutine>();
+  final Map<String, Subroutine> subroutine = new HashMap<String, Subroutine>();
+  // the program between linking and layout
+  ControlFlowGraph flow;
+  // the shared routine that divides by a variable, once a division needs it
+  OpenLoop divideRoutine;
+  // how often each optimization applied, by name
+  final Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+  // comparisons, each the negation of the one as far from the other end
+  static final String[] COMPARISONS = { "==", "<", "<=", ">", ">=", "!=" };
+  // words of the shared division routine: its operands, results and return
+  // address, then its intermediate values; a name with a dot in it cannot
+  // clash with a variable
+  static final String[] DIVIDE_WORDS = { "divide.dividend", "divide.divisor",
+      "divide.quotient", "divide.remainder", "divide.return", "divide.rest",
+      "divide.partial", "divide.test", "divide.temp", "divide.limit",
+      "divide.low" };
+  // operations an if statement may apply under its condition without a jump
+  static final Set<String> PREDICATED = new HashSet<String>(Arrays.asList(
+      "+", "-", "&", "|", "^", "&!", "<<", ">>", ">>>"));
+
+  /**
+   * @param name
+   *          Name of word-type variable to create.
+   */
+  public void createWord(String name) {
+    setRAM(firstFreeRAM, name);
+    type.put(name, wordType);
+    firstFreeRAM++;
+  }
+
+  /**
+   * @param name
+   *          Name of word-type variable to create.
+   * @param data
+   *          Initializer constant.
+   */
+  public void createWord(ArrayList<Command> ROM, String name,
+      int data) {
+    setRAM(firstFreeRAM, name);
+    type.put(name, wordType);
+    if (data != 0) {
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(data),
+          new Arg(firstFreeRAM)));
+    }
+    firstFreeRAM++;
+  }
+
+  /**
+   * @param name
+   *          Name of array-type variable to create
+   * @param size
+   *          Reserved size of array
+   */
+  public void createArray(ArrayList<Command> ROM, String name,
+      int size) {
+    setRAM(firstFreeRAM, name);
+    type.put(name, arrayType);
+    firstFreeRAM++;
+    for (int i = 0; i < size; i++) {
+      setRAM(firstFreeRAM, name + "[" + i + "]");
+      firstFreeRAM++;
+    }
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(address.get(name) + 1),
+        new Arg(address.get(name))));
+  }
+
+  /**
+   * @param name
+   *          Name of array-type variable to create
+   * @param size
+   *          Reserved size of array
+   * @param data
+   *          Initializer constants
+   */
+  public void createArray(ArrayList<Command> ROM, String name, int size,
+      ArrayList<Integer> data) {
+    setRAM(firstFreeRAM, name);
+    type.put(name, arrayType);
+    firstFreeRAM++;
+    for (int i = 0; i < size; i++) {
+      setRAM(firstFreeRAM, name + "[" + i + "]");
+      if (data.size() > 0) {
+        int datum = data.remove(0);
+        if (datum != 0) {
+          ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(datum),
+              new Arg(firstFreeRAM)));
+        }
+      }
+      firstFreeRAM++;
+    }
+    int marker = firstFreeRAM;
+    int index = size;
+    while (data.size() > 0) {
+      setRAM(marker, name + "[" + index + "]");
+      int datum = data.remove(0);
+      if (datum != 0) {
+        ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(datum),
+            new Arg(marker)));
+      }
+      marker++;
+      index++;
+    }
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(address.get(name) + 1),
+        new Arg(address.get(name))));
+  }
+
+  /**
+   * Creates name <-> location associations multiple names can be assigned to a
+   * single location
+   * 
+   * @param marker
+   *          Location of RAM to assign
+   * @param name
+   *          Variable name to assign to that location
+   */
+  void setRAM(int marker, String name) {
+    address.put(name, marker);
+    while (RAMmap.size() - 1 < marker) {
+      RAMmap.add("");
+    }
+    if (RAMmap.get(marker).equals("")) {
+      RAMmap.set(marker, name);
+    } else {
+      RAMmap.set(marker, RAMmap.get(marker) + " " + name);
+    }
+  }
+
+  // create hard-coded or system-reserved addresses
+  CompilationContext() {
+    this(System.err);
+  }
+
+  /**
+   * @param err
+   *          Destination of error and warning messages
+   */
+  CompilationContext(PrintStream err) {
+    this.err = err;
+    createWord(ProgramCounter);
+    reserved.add(ProgramCounter);
+    createWord(stdout);
+    createWord("scratch0");
+    reserved.add("scratch0");
+    scratch.add(address.get("scratch0"));
+    reserved.add(CallStackPointer);
+  }
+
+  /**
+   * @param type
+   *          Kind of block being opened
+   * @return A block with the next free ID
+   */
+  OpenLoop newLoop(String type) {
+    return new OpenLoop(type, nextLoopID++, symbols);
+  }
+
+  /**
+   * Runs every phase of compilation over a complete source text
+   * 
+   * @param in
+   *          Cogol source, read to the end
+   * @return The compiled program
+   * @throws IOException
+   */
+  public Program compile(Reader in) throws IOException {
+    return compile(Lexer.lex(Lexer.readAll(in), err));
+  }
+
+  /**
+   * @param tokens
+   *          Tokens of a complete source text
+   * @return The compiled program
+   */
+  public Program compile(TokenStream tokens) {
+    this.tokens = tokens;
+    compile();
+    link();
+    flow();
+    optimize();
+    layout();
+    simplify();
+    adjustJumps();
+    return pack();
+  }
+
+  /**
+   * Puts the constant initializers before the main program and resolves
+   * every tag, leaving the linked ROM in mainROM
+   */
+  void link() {
+    mainROM.addAll(0, ROMpredefs);
+    new Linker(this).link(mainROM);
+  }
+
+  /**
+   * Splits the linked ROM into basic blocks, leaving mainROM empty until the
+   * blocks are laid out
+   */
+  void flow() {
+    flow = ControlFlowGraph.build(mainROM);
+    mainROM.clear();
+  }
+
+  /**
+   * Improves the program while it is a flow graph
+   */
+  void optimize() {
+    ConstantPropagator constants = new ConstantPropagator(scratchAddresses());
+    PeepholeOptimizer peephole = new PeepholeOptimizer(
+        PeepholeOptimizer.RULES);
+    JumpThreader threader = new JumpThreader();
+    DeadCodeEliminator dce = new DeadCodeEliminator(scratchAddresses());
+    ScratchAllocator allocator = new ScratchAllocator(scratchAddresses());
+    // each can expose more work for the others; the scratch addresses are
+    // given out once the rest has settled, and what that leaves is cleaned up
+    boolean allocated = false;
+    boolean changed = true;
+    while (changed) {
+      changed = constants.run(flow);
+      changed = peephole.run(flow) || changed;
+      changed = threader.run(flow) || changed;
+      changed = dce.run(flow) || changed;
+      if (!changed && !allocated) {
+        allocated = true;
+        changed = allocator.run(flow);
+      }
+    }
+    statistics.put("constant-operand", constants.propagated);
+    statistics.put("fold", constants.folded);
+    statistics.putAll(peephole.applied);
+    statistics.put("thread-jump", threader.threaded);
+    statistics.put("jump-to-next", threader.removed);
+    statistics.put("unreachable", dce.unreachable);
+    statistics.put("dead-store", dce.deadStores);
+    statistics.put("nop", dce.nops);
+    statistics.put("scratch-reuse", allocator.reused);
+    statistics.put("coalesce", allocator.coalesced);
+  }
+
+  /**
+   * @return RAM addresses of the scratch words
+   */
+  int[] scratchAddresses() {
+    int[] res = new int[scratch.size()];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = scratch.get(i);
+    }
+    return res;
+  }
+
+  /**
+   * @param out
+   *          Destination of how often each optimization applied
+   */
+  void writeStatistics(PrintWriter out) {
+    out.println();
+    out.println("Optimizations:");
+    for (Map.Entry<String, Integer> e : statistics.entrySet()) {
+      out.println(e.getKey() + ": " + e.getValue());
+    }
+  }
+
+  /**
+   * Places the basic blocks back in mainROM
+   */
+  void layout() {
+    mainROM.addAll(flow.layout());
+    flow = null;
+  }
+
+  /**
+   * @return The finished program, with mainROM packed
+   */
+  Program pack() {
+    SourcePosition[] sources = new SourcePosition[mainROM.size()];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = mainROM.get(i).source;
+    }
+    return new Program(PackedROM.of(mainROM), RAMmap, subroutine, sources);
+  }
+
+  CallStatement prevCall;
+
+  /**
+   * Main compiler loop Iterates over each statement, identifies the statement
+   * type, and then calls a more specialized compiler method
+   */
+  public void compile() {
+    ArrayList<CallStatement> calls = new ArrayList<CallStatement>();
+
+    mainROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(callStack, 1),
+        new Arg(callStack, 0), symbols.intern("preloadCallStack")));
+
+    while (tokens.hasNext()) {
+      clearS();
+      if (tokens.peek().equals("call")) {
+        int start = tokens.mark();
+        SourcePosition source = position(start);
+        CallStatement call = new CallStatement(mainROM.size(), start,
+            rmStatementTokens());
+        call.source = source;
+        if (call.pointerName() != null) {
+          Subroutine isLocal = null;
+          for (int i = subs.size() - 1; i >= 0; i--) {
+            if (subs.get(i).args.contains(call.pointerName())) {
+              isLocal = subs.get(i);
+            }
+          }
+          if (call.returnsPointer) {
+            if (isLocal == null) {
+              type.put(call.pointerName(), call.subName());
+            } else {
+              isLocal.type.put(call.pointerName(), call.subName());
+            }
+          }
+        }
+        calls.add(0, call);
+        prevCall = call;
+      } else {
+        int startsize = mainROM.size();
+        int predefsize = ROMpredefs.size();
+        int depth = loops.size();
+        int start = tokens.mark();
+        // a statement that opens a block belongs to that block
+        SourcePosition source = position(start);
+        if (tokens.peek().equals("my")) {
+          compileDef();
+        } else if (tokens.peek().equals("if")
+            || tokens.peek().equals("while")) {
+          compileLoopStart(mainROM);
+        } else if (tokens.peek().equals("do")) {
+          compileDoWhile(mainROM);
+        } else if (tokens.peek().equals("sub")) {
+          compileSub(mainROM);
+        } else if (tokens.peek().equals("}")) {
+          compileLoopStop(mainROM);
+        } else if (tokens.peek().equals("return")) {
+          compileReturn(mainROM);
+          mainROM.get(mainROM.size() - 1).tags.add(symbols.intern("return"));
+        } else {
+          compileMove(mainROM);
+        }
+        if (loops.size() > depth) {
+          source = position(start);
+          stamp(loops.get(0).commands, 0, source);
+        }
+        stamp(mainROM, startsize, source);
+        stamp(ROMpredefs, predefsize, source);
+        if (mainROM.size() > startsize) {
+          prevCall = null;
+        }
+      }
+    }
+    for (int i = 0; i < calls.size(); i++) {
+      clearS();
+      CallStatement call = calls.get(i);
+      int size = mainROM.size();
+      compileCall(mainROM, call);
+      stamp(mainROM.subList(call.loc, call.loc + mainROM.size() - size), 0,
+          call.source);
+    }
+    if (divideRoutine != null) {
+      compileDivideRoutine(mainROM);
+    }
+    setRAM(firstFreeRAM, CallStackPointer);
+    type.put(CallStackPointer, arrayType);
+    firstFreeRAM++;
+  }
+
+  /**
+   * @param token
+   *          Index of the first token of a statement
+   * @return The position of the statement, in the current subroutine and
+   *         block
+   */
+  SourcePosition position(int token) {
+    return new SourcePosition(tokens.line(token), tokens.column(token),
+        subs.isEmpty() ? null : subs.get(0).name,
+        loops.isEmpty() ? null : loops.get(0).toString());
+  }
+
+  /**
+   * Gives every command from an index on that has no position yet the
+   * position of the statement just compiled
+   */
+  static void stamp(List<Command> ROM, int from, SourcePosition source) {
+    for (int i = from; i < ROM.size(); i++) {
+      if (ROM.get(i).source == null) {
+        ROM.get(i).source = source;
+      }
+    }
+  }
+
+  class CallStatement {
+    int loc;
+    SourcePosition source;
+    // position of the statement in the token stream, for replay
+    int start;
+    ArrayList<String> statement;
+    ArrayList<Subroutine> cursubs = new ArrayList<Subroutine>();
+    ArrayList<Symbol> tags = new ArrayList<Symbol>();
+    boolean returnsPointer;
+
+    public CallStatement(int loc, int start, ArrayList<String> statement) {
+      super();
+      this.loc = loc;
+      this.start = start;
+      this.statement = statement;
+      cursubs.addAll(subs);
+      returnsPointer = statement.lastIndexOf(")") >= statement
+          .lastIndexOf(".");
+    }
+
+    String pointerName() {
+      if (eqIndex() > -1) {
+        return statement.get(1);
+      } else {
+        return null;
+      }
+    }
+
+    String subName() {
+      int eqloc = eqIndex();
+      if (eqloc > -1) {
+        return statement.get(eqloc + 1);
+      } else {
+        return statement.get(1);
+      }
+    }
+
+    int eqIndex() {
+      for (int i = 0; i < statement.size(); i++) {
+        if (statement.get(i).endsWith("=")) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+  }
+
+  /**
+   * @param commands
+   *          Commands to be placed once more, such as argument initializers
+   * @return Copies of them, which can be given their own positions
+   */
+  static ArrayList<Command> copies(List<Command> commands) {
+    ArrayList<Command> res = new ArrayList<Command>();
+    for (Command c : commands) {
+      Command copy = c.dupWithoutTags();
+      copy.tags.addAll(c.tags);
+      res.add(copy);
+    }
+    return res;
+  }
+
+  /**
+   * Fills the delay slots of unconditional jumps with the commands they jump
+   * to, and jumps past them instead
+   */
+  void simplify() {
+    // a jump whose target is another such jump is filled after it, so that
+    // it copies the target's final form
+    boolean[] done = new boolean[mainROM.size()];
+    ArrayList<Integer> chain = new ArrayList<Integer>();
+    for (int i = 0; i < mainROM.size(); i++) {
+      for (int j = i; !done[j] && hasEmptyDelaySlot(j); j = mainROM
+          .get(j).arg2.val) {
+        done[j] = true;
+        chain.add(j);
+      }
+      for (int k = chain.size() - 1; k >= 0; k--) {
+        int j = chain.get(k);
+        Command c = mainROM.get(j);
+        Command replacement = mainROM.get(c.arg2.val).dupWithoutTags();
+        replacement.tags.addAll(mainROM.get(j + 1).tags);
+        mainROM.set(j + 1, replacement);
+        c.arg2 = new Arg(c.arg2.val + 1);
+      }
+      chain.clear();
+    }
+  }
+
+  /**
+   * @return Whether the command at an index is an unconditional jump into the
+   *         ROM followed by a nop, which can be replaced by the jump's target
+   */
+  private boolean hasEmptyDelaySlot(int i) {
+    Command c = mainROM.get(i);
+    return i + 1 < mainROM.size()
+        && c.isEquivalent(Opcode.MLZ, 0, -1, 0, null, 0, 0)
+        && c.arg2.val >= 0 && c.arg2.val < mainROM.size()
+        && mainROM.get(i + 1).isEquivalent(Opcode.MLZ, 0, 0, 0, 0, 0, 0);
+  }
+
+  /**
+   * Changes all jump statements (like MLZ _ N 0) to point to the N-1 spot in
+   * ROM
+   */
+  void adjustJumps() {
+    mainROM.add(0, new Command(Opcode.MLZ, new Arg(0), new Arg(0), new Arg(0)));
+  }
+
+  /**
+   * Removes everything up to and including the next semicolon Used to generate
+   * error messages
+   * 
+   * @return removed tokens
+   */
+  public String rmStatement() {
+    String res = "";
+    while (tokens.hasNext() && !tokens.peek().equals(";")) {
+      res += " " + tokens.next();
+    }
+    if (tokens.hasNext() && tokens.peek().equals(";")) {
+      res += " " + tokens.next();
+    }
+    return res;
+  }
+
+  /**
+   * Removes everything up to and including the next semicolon Used to generate
+   * error messages
+   * 
+   * @return removed tokens
+   */
+  public ArrayList<String> rmStatementTokens() {
+    ArrayList<String> res = new ArrayList<String>();
+    while (tokens.hasNext() && !tokens.peek().equals(";")) {
+      res.add(tokens.next());
+    }
+    if (tokens.hasNext() && tokens.peek().equals(";")) {
+      res.add(tokens.next());
+    }
+    return res;
+  }
+
+  /**
+   * Responsible for creating WHILE and IF statements It calculates the commands
+   * for the beginning and end of the loop The ending is stored in an OpenLoop
+   * to be added when then loop is closed
+   * 
+   * @param ROM
+   *          Command list to modify
+   */
+  public void compileLoopStart(ArrayList<Command> ROM) {
+    String type = tokens.next();
+    OpenLoop loop = newLoop(type);
+    loops.add(0, loop);
+    tokens.next(); // (
+    int condition = tokens.mark();
+
+    ArrayList<Command> cond = new ArrayList<Command>();
+
+    Arg arg1 = compileRef(cond, false);
+    String op = tokens.next();
+    Arg arg2 = new Arg(0);
+    if (op.equals(")")) {
+      op = "!=";
+    } else {
+      arg2 = compileRef(cond, false);
+      tokens.next(); // )
+    }
+    String oBrace = tokens.next();
+    while (!oBrace.equals("{")) {
+      loop.name += "_" + oBrace;
+      oBrace = tokens.next();
+    }
+
+    if (type.equals("while")) {
+      Arg test = null;
+      if (arg2.mode == 0 && op.equals("<=")) {
+        arg2.val++;
+        op = "<";
+      }
+      if (arg1.mode == 0 && op.equals("<=")) {
+        arg1.val--;
+        op = "<";
+      }
+      if (arg2.mode == 0 && op.equals(">=")) {
+        arg2.val--;
+        op = ">";
+      }
+      if (arg1.mode == 0 && op.equals(">=")) {
+        arg1.val++;
+        op = ">";
+      }
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(loop.end(), 0),
+          new Arg(address.get(ProgramCounter)), loop.begin()));
+      if (op.equals("<") || op.equals(">") || op.equals("<=")
+          || op.equals(">=")) {
+        if (op.startsWith(">")) {
+          Arg temp = arg1;
+          arg1 = arg2;
+          arg2 = temp;
+        }
+        if (arg2.mode == 0 && arg2.val == 0) {
+          test = arg1;
+        } else {
+          if (!op.endsWith("=")) {
+            freeS(arg1);
+          }
+          freeS(arg2);
+          Arg testdest = mallocS();
+          test = testdest.dup();
+          test.mode++;
+          if (op.endsWith("=")) {
+            cond.add(new Command(Opcode.ADD, arg2, new Arg(1), testdest));
+            cond.add(new Command(Opcode.SUB, arg1, test, testdest));
+          } else {
+            cond.add(new Command(Opcode.SUB, arg1, arg2, testdest));
+          }
+        }
+        cond.add(new Command(Opcode.MLZ, test, new Arg(loop.begin(), 2),
+            new Arg(address.get(ProgramCounter))));
+      } else if (op.equals("!=")) {
+        if (arg2.mode == 0 && arg2.val == 0) {
+          test = arg1;
+        } else if (arg1.mode == 0 && arg1.val == 0) {
+          test = arg2;
+        } else {
+          freeS(arg1);
+          freeS(arg2);
+          Arg testdest = mallocS();
+          test = testdest.dup();
+          test.mode++;
+          cond.add(new Command(Opcode.SUB, arg1, arg2, testdest));
+        }
+        cond.add(new Command(Opcode.MNZ, test, new Arg(loop.begin(), 2),
+            new Arg(address.get(ProgramCounter))));
+      } else {
+        err.println("error: condition " + type + " " + op + " not supported");
+      }
+      compileDelaySlot(ROM);
+      int endloc = cond.size() - 1;
+      if (endloc > 1) {
+        endloc = 1;
+      }
+      cond.get(endloc).tags.add(loop.end());
+      for (int i = 0; i < endloc; i++) {
+        ROM.set(ROM.size() - 1 + i, cond.get(i));
+      }
+      compileDelaySlot(cond);
+      loop.commands = cond;
+
+    } else if (type.equals("if")) {
+      ROM.addAll(cond);
+      if (compileConvertedIf(ROM, loop, arg1, op, arg2, condition)) {
+        return;
+      }
+      Cond skip = compare(ROM, arg1, negation(op), arg2);
+      ROM.add(new Command(skip.type == 0 ? Opcode.MNZ : Opcode.MLZ,
+          skip.type == -1 ? new Arg(0) : skip.address,
+          new Arg(loop.end(), 1), new Arg(address.get(ProgramCounter))));
+      compileDelaySlot(ROM);
+      ROM.get(ROM.size() - 2).tags.add(loop.begin());
+    }
+  }
+
+  /**
+   * Compiles the body of an if statement as conditional moves instead of a
+   * jump around it. The body must be simple assignments and operations
+   * without an else, and running all of it under the condition must take no
+   * longer than the test, the jump and its delay slot, with the body run
+   * half the time.
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param condition
+   *          Index of the first token of the condition
+   * @return Whether the body was compiled, up to and including its closing
+   *         brace
+   */
+  private boolean compileConvertedIf(ArrayList<Command> ROM, OpenLoop loop,
+      Arg arg1, String op, Arg arg2, int condition) {
+    if (negation(op) == null || isConstant(arg1) && isConstant(arg2)) {
+      return false;
+    }
+    Set<String> written = new HashSet<String>();
+    int statements = 0;
+    // moves count 1, operations 2 for the move of their result
+    int length = 0;
+    int i = tokens.mark();
+    while (!token(i).equals("}")) {
+      i = skipRef(i);
+      if (i < 0) {
+        return false;
+      }
+      written.add(tokens.get(i - 1).equals("]") ? tokens.get(i - 4)
+          : tokens.get(i - 1));
+      String eq = token(i++);
+      if (eq.equals("=") && token(i).equals("-")) {
+        i = skipRef(i + 1);
+        length += 2;
+      } else if (eq.equals("=")) {
+        i = skipRef(i);
+        if (i >= 0 && PREDICATED.contains(token(i))) {
+          i = skipRef(i + 1);
+          length++;
+        }
+        length++;
+      } else if (eq.equals("++") || eq.equals("--")) {
+        length += 2;
+      } else if (eq.endsWith("=")
+          && PREDICATED.contains(eq.substring(0, eq.length() - 1))) {
+        i = skipRef(i);
+        length += 2;
+      } else {
+        return false;
+      }
+      if (i < 0 || !token(i++).equals(";")) {
+        return false;
+      }
+      statements++;
+    }
+    if (token(i + 1).equals("else")) {
+      return false;
+    }
+    int test = comparisonCost(arg1, op, arg2);
+    boolean copy = false;
+    for (int j = condition; test == 0 && !token(j).equals(")"); j++) {
+      copy |= written.contains(tokens.get(j));
+    }
+    if (copy) {
+      test++;
+    }
+    if (2 * (test + length) > 2 * (comparisonCost(arg1, negation(op), arg2)
+        + 2) + statements) {
+      return false;
+    }
+
+    int first = ROM.size();
+    Cond cond = compare(ROM, arg1, op, arg2);
+    Arg predicate = cond.address;
+    if (copy) {
+      Arg temp = mallocS();
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), predicate, temp));
+      predicate = temp.dup();
+      predicate.mode++;
+    }
+    Opcode move = cond.type == 0 ? Opcode.MNZ : Opcode.MLZ;
+    Arg result = null;
+    while (!tokens.peek().equals("}")) {
+      SourcePosition source = position(tokens.mark());
+      int start = ROM.size();
+      ArrayList<Command> statement = new ArrayList<Command>();
+      compileMove(statement);
+      for (Command c : statement) {
+        if (c.arg3.mode == 0 && c.arg3.tag == null
+            && scratch.contains(c.arg3.val)) {
+          ROM.add(c);
+        } else if (c.opcode.isOperation()) {
+          if (result == null) {
+            result = mallocS();
+          }
+          Arg read = result.dup();
+          read.mode++;
+          ROM.add(new Command(move, predicate, read, c.arg3));
+          c.arg3 = result;
+          ROM.add(ROM.size() - 1, c);
+        } else {
+          c.opcode = move;
+          c.arg1 = predicate;
+          ROM.add(c);
+        }
+      }
+      stamp(ROM, start, source);
+    }
+    tokens.next(); // }
+    loops.remove(0);
+    if (ROM.size() == first) {
+      compileDelaySlot(ROM);
+    }
+    ROM.get(first).tags.add(loop.begin());
+    ROM.get(ROM.size() - 1).tags.add(loop.end());
+    return true;
+  }
+
+  /**
+   * @param i
+   *          Index of the first token of a reference
+   * @return The index of the token after a variable, an element of an array
+   *         or a number, or -1 if there is none there
+   */
+  private int skipRef(int i) {
+    while (token(i).equals("\\") || token(i).equals("$")) {
+      i++;
+    }
+    if (i >= tokens.size() || tokens.kind(i) != TokenStream.Kind.IDENTIFIER
+        && tokens.kind(i) != TokenStream.Kind.INTEGER) {
+      return -1;
+    }
+    if (!token(i + 1).equals("[")) {
+      return i + 1;
+    }
+    return token(i + 3).equals("]") ? i + 4 : -1;
+  }
+
+  /**
+   * @return The token at an index, or an empty string past the end
+   */
+  private String token(int i) {
+    return i < tokens.size() ? tokens.get(i) : "";
+  }
+
+  /**
+   * Appends the loop ending that was computed during loop creation It also
+   * handles ELSE statements by creating another loop
+   * 
+   * @param ROM
+   */
+  public void compileLoopStop(ArrayList<Command> ROM) {
+    tokens.next(); // }
+    OpenLoop loop = loops.remove(0);
+    int startloc = ROM.size();
+    ROM.addAll(loop.commands);
+    if (loop.type.equals("if")) {
+      if (tokens.peek().equals("else")) {
+        tokens.next(); // else
+        OpenLoop loop2 = newLoop("else");
+        loops.add(0, loop2);
+        String oBrace = tokens.next();
+        while (!oBrace.equals("{")) {
+          loop2.name += "_" + oBrace;
+          oBrace = tokens.next();
+        }
+        ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(loop2.end(), 1),
+            new Arg(address.get(ProgramCounter)), loop2.begin()));
+        compileDelaySlot(ROM);
+      }
+    }
+    if (loop.type.equals("doWhile")) {
+      tokens.next(); // while
+      tokens.next(); // (
+      Arg arg1 = compileRef(ROM, false);
+      String op = tokens.next();
+      Arg arg2 = new Arg(0);
+      if (op.equals(")")) {
+        op = "!=";
+      } else {
+        arg2 = compileRef(ROM, false);
+        tokens.next(); // )
+      }
+      tokens.next(); // ;
+      Arg test = null;
+      if (arg2.mode == 0 && op.equals("<=")) {
+        arg2.val++;
+        op = "<";
+      }
+      if (arg1.mode == 0 && op.equals("<=")) {
+        arg1.val--;
+        op = "<";
+      }
+      if (arg2.mode == 0 && op.equals(">=")) {
+        arg2.val--;
+        op = ">";
+      }
+      if (arg1.mode == 0 && op.equals(">=")) {
+        arg1.val++;
+        op = ">";
+      }
+      if (op.equals("<") || op.equals(">") || op.equals("<=")
+          || op.equals(">=")) {
+        if (op.startsWith(">")) {
+          Arg temp = arg1;
+          arg1 = arg2;
+          arg2 = temp;
+        }
+        if (arg2.mode == 0 && arg2.val == 0) {
+          test = arg1;
+        } else {
+          if (!op.endsWith("=")) {
+            freeS(arg1);
+          }
+          freeS(arg2);
+          Arg testdest = mallocS();
+          test = testdest.dup();
+          test.mode++;
+          if (op.endsWith("=")) {
+            ROM.add(new Command(Opcode.ADD, arg2, new Arg(1), testdest));
+            ROM.add(new Command(Opcode.SUB, arg1, test, testdest));
+          } else {
+            ROM.add(new Command(Opcode.SUB, arg1, arg2, testdest));
+          }
+        }
+        ROM.add(new Command(Opcode.MLZ, test, new Arg(loop.begin(), 1),
+            new Arg(address.get(ProgramCounter))));
+      } else if (op.equals("!=")) {
+        if (arg2.mode == 0 && arg2.val == 0) {
+          test = arg1;
+        } else if (arg1.mode == 0 && arg1.val == 0) {
+          test = arg2;
+        } else {
+          freeS(arg1);
+          freeS(arg2);
+          Arg testdest = mallocS();
+          test = testdest.dup();
+          test.mode++;
+          ROM.add(new Command(Opcode.SUB, arg1, arg2, testdest));
+        }
+        ROM.add(new Command(Opcode.MNZ, test, new Arg(loop.begin(), 1),
+            new Arg(address.get(ProgramCounter))));
+      } else {
+        err.println("error: condition doWhile " + op + " not supported");
+      }
+      compileDelaySlot(ROM);
+    }
+    if (loop.type.equals("if") || loop.type.equals("else")
+        || loop.type.equals("sub") || loop.type.equals("doWhile")) {
+      if (prevCall == null || ROM.size() > startloc) {
+        ROM.get(ROM.size() - 1).tags.add(loop.end());
+      } else {
+        prevCall.tags.add(loop.end());
+      }
+    }
+    if (loop.type.equals("sub")) {
+      subs.remove(0);
+    }
+  }
+
+  /**
+   * Parses variable declarations
+   * 
+   * @param ROM
+   *          command list to modify
+   */
+  public void compileDef() {
+    // used to test for constant initializers
+    ArrayList<Command> ROM = new ArrayList<Command>();
+    tokens.next(); // my
+    String name = tokens.next();
+    if (address.containsKey(name)) {
+      err.println("error: my " + name + rmStatement());
+    } else if (reserved.contains(name)) {
+      err.println("error: reserved name at my " + name + rmStatement());
+    } else {
+      String type = tokens.next();
+      if (type.equals("[")) {
+        Integer size = Integer.parseInt(tokens.next());
+        tokens.next(); // ]
+        String eq = tokens.next(); // ; or =
+        if (eq.equals("=")) {
+          tokens.next(); // {
+          ArrayList<Integer> inits = new ArrayList<Integer>();
+          Arg init = compileRef(ROM, false);
+          String div = tokens.next();
+          while (div.equals(",")) {
+            if (init.mode == 0) {
+              inits.add(init.val);
+            } else {
+              inits.add(null);
+              err.println("Error: non-constant initilizer at my " + name
+                  + "[" + size + "] = ... " + init);
+            }
+            init = compileRef(ROM, false);
+            div = tokens.next();
+          }
+          if (div.equals("}")) {
+            if (init.mode == 0) {
+              inits.add(init.val);
+            } else {
+              inits.add(null);
+              err.println("Error: non-constant initilizer at my " + name
+                  + "[" + size + "] = ... " + init);
+            }
+            createArray(ROMpredefs, name, size, inits);
+            tokens.next(); // ;
+          } else {
+            err.println("Error: invalid initilizer at my " + name + "["
+                + size + "] = ... " + init + rmStatement());
+            createArray(ROMpredefs, name, size, inits);
+          }
+        } else {
+          createArray(ROMpredefs, name, size);
+        }
+      } else if (type.equals(";")) {
+        createWord(name);
+      } else if (type.equals("=")) {
+        Arg init = compileRef(ROM, false);
+        if (init.mode == 0 && tokens.peek().equals(";")) {
+          createWord(ROMpredefs, name, init.val);
+          tokens.next(); // ;
+        } else {
+          createWord(name);
+          err.println("Error: non-constant initilizer at my " + name
+              + " = " + init + rmStatement());
+        }
+      } else {
+        err.println("error: my " + name + " " + type + rmStatement());
+      }
+    }
+  }
+
+  /**
+   * Parses a reference to a variable or constant
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param isDest
+   *          whether the reference will be used as an lvalue, to change Arg
+   *          mode accordingly
+   * @return An argument pointing to
+   */
+  public Arg compileRef(ArrayList<Command> ROM, boolean isDest) {
+    int slash = 0;
+    String name = tokens.next();
+    while (name.equals("\\") || name.equals("$")) {
+      if (name.equals("\\")) {
+        slash--;
+      } else {
+        slash++;
+      }
+      name = tokens.next();
+    }
+    Arg arg1 = null;
+    if (reserved.contains(name)) {
+      err.println("error: reserved address at: " + name + rmStatement());
+      return null;
+    }
+    try {
+      Integer value = Integer.parseInt(name);
+      if (isDest) {
+        err.println("error: bare number at: " + name + rmStatement());
+        return null;
+      } else {
+        return new Arg(0, value);
+      }
+    } catch (Exception e) {
+    }
+    Subroutine isLocal = null;
+    for (int i = subs.size() - 1; i >= 0; i--) {
+      if (subs.get(i).args.contains(name)) {
+        isLocal = subs.get(i);
+      }
+    }
+    if (!address.containsKey(name) && isLocal == null
+        && !tokens.peek().equals(".")) {
+      err.println("error: undeclared variable at: " + name + rmStatement());
+      return null;
+    }
+    String reftype = tokens.peek();
+    if (reftype.equals("[")) {
+      tokens.next(); // [
+      Arg index = compileRef(ROM, false);
+      if (isLocal == null) {
+        if (arrayType.equals(type.get(name))) {
+          if (index.mode == 0) {
+            arg1 = new Arg(1, address.get(name) + 1 + index.val);
+          } else {
+            Arg temp = null;
+            if (index.scratches.size() > 0) {
+              temp = index.scratches.get(0);
+            } else {
+              temp = mallocS();
+            }
+            ROM.add(new Command(Opcode.ADD, new Arg(address.get(name) + 1),
+                index, temp));
+            arg1 = new Arg(2, temp.val);
+            arg1.scratches.add(temp);
+          }
+        } else {
+          Arg temp = null;
+          if (index.scratches.size() > 0) {
+            temp = index.scratches.get(0);
+          } else {
+            temp = mallocS();
+          }
+          ROM.add(new Command(Opcode.ADD, new Arg(1, address.get(name)),
+              index, temp));
+          arg1 = new Arg(2, temp.val);
+          arg1.scratches.add(temp);
+        }
+      } else {
+        if (arrayType.equals(isLocal.type.get(name))) {
+          if (index.mode == 0) {
+            Arg temp = null;
+            if (index.scratches.size() > 0) {
+              temp = index.scratches.get(0);
+            } else {
+              temp = mallocS();
+            }
+            ROM.add(new Command(Opcode.ADD, new Arg(1, isLocal.symbol, 0),
+                new Arg(isLocal.address.get(name) + 1 + index.val), temp));
+            arg1 = new Arg(2, temp.val);
+            arg1.scratches.add(temp);
+          } else {
+            Arg temp = null;
+            if (index.scratches.size() > 0) {
+              temp = index.scratches.get(0);
+            } else {
+              temp = mallocS();
+            }
+            ROM.add(new Command(Opcode.ADD, new Arg(1, isLocal.symbol, 0),
+                new Arg(isLocal.address.get(name) + 1), temp));
+            ROM.add(new Command(Opcode.ADD, new Arg(1, temp.val), index, temp));
+            arg1 = new Arg(2, temp.val);
+            arg1.scratches.add(temp);
+          }
+        } else {
+          Arg temp = null;
+          if (index.scratches.size() > 0) {
+            temp = index.scratches.get(0);
+          } else {
+            temp = mallocS();
+          }
+          ROM.add(new Command(Opcode.ADD, new Arg(1, address.get(name)),
+              index, temp));
+          arg1 = new Arg(2, temp.val);
+          arg1.scratches.add(temp);
+        }
+      }
+      tokens.next(); // ]
+    } else if (reftype.equals(".")) {
+      tokens.next(); // .
+      if (isLocal == null) {
+        if (!address.containsKey(name)) {
+          err.println("error: undeclared variable at: " + name + rmStatement());
+          return null;
+        }
+        Arg temp = mallocS();
+        ArrayList<String> line = getRefTokens();
+        String varname = "";
+        String vartype = type.get(name);
+        if (wordType.equals(vartype)) {
+          vartype = name;
+        }
+        for (String s : line) {
+          varname += s;
+        }
+        ROM.add(new Command(Opcode.ADD, new Arg(1, address.get(name)), new Arg(
+            symbols.intern(varname), 0, symbols.intern(vartype)), temp));
+        arg1 = new Arg(2, temp.val);
+        arg1.scratches.add(temp);
+      } else {
+        Arg temp = mallocS();
+        ArrayList<String> line = getRefTokens();
+        String varname = "";
+        String vartype = isLocal.type.get(name);
+        if (wordType.equals(vartype)) {
+          vartype = name;
+        }
+        for (String s : line) {
+          varname += s;
+        }
+        ROM.add(new Command(Opcode.ADD, new Arg(1, isLocal.symbol, 0),
+            new Arg(isLocal.address.get(name)), temp));
+        ROM.add(new Command(Opcode.ADD, new Arg(2, temp.val), new Arg(
+            symbols.intern(varname), 0, symbols.intern(vartype)), temp));
+        arg1 = new Arg(2, temp.val);
+        arg1.scratches.add(temp);
+      }
+    } else {
+      if (isLocal == null) {
+        if (arrayType.equals(type.get(name))) {
+          err.println("warning: " + name + " of incorrect type");
+        }
+        arg1 = new Arg(1, address.get(name));
+      } else {
+        if (arrayType.equals(isLocal.type.get(name))) {
+          err.println("warning: " + name + " of incorrect type");
+        }
+        Arg temp = mallocS();
+        ROM.add(new Command(Opcode.ADD, new Arg(1, isLocal.symbol, 0),
+            new Arg(isLocal.address.get(name)), temp));
+        arg1 = new Arg(2, temp.val);
+        arg1.scratches.add(temp);
+      }
+    }
+    arg1.mode += slash;
+    if (isDest) {
+      arg1.mode--;
+    }
+    return arg1;
+  }
+
+  ArrayList<String> getRefTokens() {
+    ArrayList<String> res = new ArrayList<String>();
+    res.add(tokens.next());
+    if (tokens.peek().equals(".")) {
+      res.add(tokens.next()); // .
+      res.addAll(getRefTokens());
+    } else if (tokens.peek().equals("[")) {
+      res.add(tokens.next()); // [
+      res.addAll(getRefTokens());
+      res.add(tokens.next()); // ]
+    }
+    return res;
+  }
+
+  /**
+   * Compiles "regular" statements: basic operations and conditional moves
+   * 
+   * @param ROM
+   *          command list to modify
+   */
+  public void compileMove(ArrayList<Command> ROM) {
+    Arg arg3 = compileRef(ROM, true);
+    checkBounds(arg3, false);
+    String eq = tokens.next(); // =
+    Arg arg1 = null;
+    String op = "";
+    if (eq.equals("=")) {
+      if (tokens.peek().equals("-")) {
+        arg1 = new Arg(0);
+      } else {
+        arg1 = compileRef(ROM, false);
+      }
+      op = tokens.next();
+    } else if (eq.endsWith("=")) {
+      arg1 = arg3.dup();
+      arg1.mode++;
+      op = eq.substring(0, eq.length() - 1);
+    } else if (eq.equals("++")) {
+      arg1 = arg3.dup();
+      arg1.mode++;
+      ROM.add(new Command(Opcode.ADD, arg1, new Arg(1), arg3));
+      tokens.next(); // ;
+      return;
+    } else if (eq.equals("--")) {
+      arg1 = arg3.dup();
+      arg1.mode++;
+      ROM.add(new Command(Opcode.ADD, arg1, new Arg(-1), arg3));
+      tokens.next(); // ;
+      return;
+    }
+    checkBounds(arg1, false);
+
+    if (op.equals(";")) {
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), arg1, arg3));
+    } else if (op.equals("if")) {
+      Cond cond = compileCond(ROM);
+      tokens.next(); // ;
+      if (cond.type == 0) {
+        ROM.add(new Command(Opcode.MNZ, cond.address, arg1, arg3));
+      } else if (cond.type == 1) {
+        ROM.add(new Command(Opcode.MLZ, cond.address, arg1, arg3));
+      }
+    } else {
+      Arg arg2 = compileRef(ROM, false);
+      tokens.next(); // ;
+      checkBounds(arg2, false);
+
+      if (op.equals("+") || op.equals("--")) {
+        ROM.add(new Command(Opcode.ADD, arg1, arg2, arg3));
+      } else if (op.equals("-") || op.equals("+-")) {
+        ROM.add(new Command(Opcode.SUB, arg1, arg2, arg3));
+      } else if (op.equals("&")) {
+        ROM.add(new Command(Opcode.AND, arg1, arg2, arg3));
+      } else if (op.equals("|")) {
+        ROM.add(new Command(Opcode.OR, arg1, arg2, arg3));
+      } else if (op.equals("^")) {
+        ROM.add(new Command(Opcode.XOR, arg1, arg2, arg3));
+      } else if (op.equals("&!")) {
+        ROM.add(new Command(Opcode.ANT, arg1, arg2, arg3));
+      } else if (op.equals("<<")) {
+        ROM.add(new Command(Opcode.SL, arg1, arg2, arg3));
+      } else if (op.equals(">>>")) {
+        ROM.add(new Command(Opcode.SRL, arg1, arg2, arg3));
+      } else if (op.equals(">>")) {
+        ROM.add(new Command(Opcode.SRA, arg1, arg2, arg3));
+      } else if (op.equals("*")) {
+        compileMultiply(ROM, arg1, arg2, arg3);
+      } else if (op.equals("/") || op.equals("%")) {
+        compileDivide(ROM, arg1, arg2, arg3, op.equals("%"));
+      } else {
+        err.println("error: unrecognized operation " + op);
+      }
+    }
+  }
+
+  /**
+   * Compiles a product into straight-line code, whose result is the low 16
+   * bits of the product whatever the signs. A constant factor becomes a
+   * shift and an addition or subtraction for each nonzero digit of its
+   * non-adjacent form, so a power of two is a single shift. Any other product
+   * adds the multiplicand for each of the 16 bits of the multiplier, from the
+   * highest, doubling the sum in between.
+   * 
+   * @param ROM
+   *          command list to modify
+   */
+  private void compileMultiply(ArrayList<Command> ROM, Arg arg1, Arg arg2,
+      Arg arg3) {
+    int ID = nextLoopID++;
+    Symbol beginMult = symbols.intern("beginMult" + ID);
+    Symbol endMult = symbols.intern("endMult" + ID);
+    int begin = ROM.size();
+    if (isConstant(arg1) && !isConstant(arg2)) {
+      Arg temp = arg1;
+      arg1 = arg2;
+      arg2 = temp;
+    }
+    if (isConstant(arg1)) {
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1),
+          new Arg((short) (arg1.val * arg2.val)), arg3));
+    } else if (isConstant(arg2)) {
+      multiplyByConstant(ROM, arg1, arg2.val, arg3);
+    } else {
+      // intermediate values never go to arg3, which either factor may read
+      Arg sum = mallocS();
+      Arg sumr = sum.dup();
+      sumr.mode++;
+      Arg bits = mallocS();
+      Arg bitsr = bits.dup();
+      bitsr.mode++;
+      Arg temp = mallocS();
+      Arg tempr = temp.dup();
+      tempr.mode++;
+      ROM.add(new Command(Opcode.SL, arg2, new Arg(1), bits));
+      ROM.add(new Command(Opcode.SRA, arg2, new Arg(15), temp));
+      ROM.add(new Command(Opcode.AND, tempr, arg1, sum));
+      // the highest bit of bits is the next bit of the multiplier
+      for (int i = 14; i >= 0; i--) {
+        ROM.add(new Command(Opcode.SL, sumr, new Arg(1), sum));
+        ROM.add(new Command(Opcode.ADD, sumr, arg1, temp));
+        ROM.add(new Command(Opcode.MLZ, bitsr, tempr, sum));
+        if (i > 0) {
+          ROM.add(new Command(Opcode.SL, bitsr, new Arg(1), bits));
+        }
+      }
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), sumr, arg3));
+    }
+    ROM.get(begin).tags.add(beginMult);
+    ROM.get(ROM.size() - 1).tags.add(endMult);
+  }
+
+  /**
+   * Compiles a product with a constant by shifts, additions and subtractions,
+   * following the nonzero digits of the constant's non-adjacent form, which
+   * are each 1 or -1 and never next to each other, from the highest
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param factor
+   *          Constant, of which only the low 16 bits count
+   */
+  private void multiplyByConstant(ArrayList<Command> ROM, Arg arg1,
+      int factor, Arg arg3) {
+    ArrayList<Integer> digits = new ArrayList<Integer>();
+    ArrayList<Integer> shifts = new ArrayList<Integer>();
+    int rest = factor & 0xFFFF;
+    // digits from the 16th on only add multiples of 65536
+    for (int shift = 0; rest != 0 && shift < 16; shift++, rest >>= 1) {
+      if ((rest & 1) != 0) {
+        int digit = 2 - (rest & 3);
+        digits.add(0, digit);
+        shifts.add(0, shift);
+        rest -= digit;
+      }
+    }
+    if (digits.isEmpty()) {
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(0), arg3));
+      return;
+    }
+    // the last command writes arg3, and the ones before a scratch address,
+    // so that arg1 may be read from arg3
+    Arg sum = digits.size() == 1 ? arg3 : mallocS();
+    Arg sumr = sum.dup();
+    sumr.mode++;
+    for (int k = 0; k < digits.size(); k++) {
+      int shift = shifts.get(k)
+          - (k + 1 < shifts.size() ? shifts.get(k + 1) : 0);
+      Arg dest = k + 1 == digits.size() && shift == 0 ? arg3 : sum;
+      if (k == 0 && digits.get(k) > 0) {
+        if (shift > 0) {
+          ROM.add(new Command(Opcode.SL, arg1, new Arg(shift), dest));
+          continue;
+        }
+        ROM.add(new Command(Opcode.MLZ, new Arg(-1), arg1, dest));
+      } else if (k == 0) {
+        ROM.add(new Command(Opcode.SUB, new Arg(0), arg1, dest));
+      } else {
+        ROM.add(new Command(digits.get(k) > 0 ? Opcode.ADD : Opcode.SUB, sumr,
+            arg1, dest));
+      }
+      if (shift > 0) {
+        ROM.add(new Command(Opcode.SL, sumr, new Arg(shift),
+            k + 1 == digits.size() ? arg3 : sum));
+      }
+    }
+  }
+
+  /**
+   * Compiles a quotient or remainder of unsigned words. A power of two is a
+   * single shift or mask. Any other divisor is divided by restoring
+   * division: for each bit of the quotient, from the highest, the divisor
+   * shifted to that bit is subtracted from the remainder where it fits. A
+   * constant divisor is divided in line, taking only the steps for the bits
+   * its quotient can have, and a variable one calls the shared routine, so
+   * that its 16 steps are in the ROM only once. Dividing by 0 gives 65535
+   * and leaves the dividend as the remainder.
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param remainder
+   *          Whether to compile the remainder rather than the quotient
+   */
+  private void compileDivide(ArrayList<Command> ROM, Arg arg1, Arg arg2,
+      Arg arg3, boolean remainder) {
+    int ID = nextLoopID++;
+    Symbol beginDiv = symbols.intern("beginDiv" + ID);
+    Symbol endDiv = symbols.intern("endDiv" + ID);
+    int begin = ROM.size();
+    int divisor = arg2.val & 0xFFFF;
+    if (isConstant(arg1) && isConstant(arg2)) {
+      int dividend = arg1.val & 0xFFFF;
+      int res = divisor == 0 ? (remainder ? dividend : 0xFFFF)
+          : remainder ? dividend % divisor : dividend / divisor;
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg((short) res),
+          arg3));
+    } else if (isConstant(arg2) && divisor == 0) {
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1),
+          remainder ? arg1 : new Arg(-1), arg3));
+    } else if (isConstant(arg2) && (divisor & (divisor - 1)) == 0) {
+      if (remainder) {
+        ROM.add(new Command(Opcode.AND, arg1, new Arg(divisor - 1), arg3));
+      } else {
+        ROM.add(new Command(Opcode.SRL, arg1,
+            new Arg(Integer.numberOfTrailingZeros(divisor)), arg3));
+      }
+    } else if (isConstant(arg2)) {
+      divide(ROM, arg1, arg2, remainder ? null : arg3,
+          remainder ? arg3 : null, this::mallocS);
+    } else {
+      callDivide(ROM, arg1, arg2, arg3, remainder);
+    }
+    ROM.get(begin).tags.add(beginDiv);
+    ROM.get(ROM.size() - 1).tags.add(endDiv);
+  }
+
+  /**
+   * Compiles a restoring division. Before the step for bit i the remainder
+   * is less than the divisor shifted i + 1 bits, so the bit is set when the
+   * remainder shifted right i bits, which fits in 15 bits, is at least the
+   * divisor; a divisor of 32768 or more is never taken there. The last step
+   * compares full words, which needs their borrow rather than the sign of
+   * their difference, unless the divisor is a constant below 32768.
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param quotientDest
+   *          Where the quotient goes, or null if it is not needed
+   * @param remainderDest
+   *          Where the remainder goes, or null if it is not needed
+   * @param word
+   *          Gives out the words that hold intermediate values
+   */
+  private void divide(ArrayList<Command> ROM, Arg arg1, Arg arg2,
+      Arg quotientDest, Arg remainderDest, Supplier<Arg> word) {
+    boolean constant = isConstant(arg2);
+    boolean quotients = quotientDest != null;
+    int divisor = arg2.val & 0xFFFF;
+    // intermediate values never go to a destination, which either operand may
+    // read
+    Arg rest = word.get();
+    Arg restr = rest.dup();
+    restr.mode++;
+    Arg quotient = word.get();
+    Arg quotientr = quotient.dup();
+    quotientr.mode++;
+    Arg test = word.get();
+    Arg testr = test.dup();
+    testr.mode++;
+    Arg temp = word.get();
+    Arg tempr = temp.dup();
+    tempr.mode++;
+    // a step is taken where this minus the shifted remainder is negative
+    Arg limit;
+    int top;
+    if (constant) {
+      limit = new Arg(divisor < 0x8000 ? divisor - 1 : 0x7FFF);
+      top = 16 - (32 - Integer.numberOfLeadingZeros(divisor));
+    } else {
+      Arg limitw = word.get();
+      ROM.add(new Command(Opcode.ADD, arg2, new Arg(-1), limitw));
+      ROM.add(new Command(Opcode.MLZ, arg2, new Arg(0x7FFF), limitw));
+      limit = limitw.dup();
+      limit.mode++;
+      top = 15;
+    }
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), arg1, rest));
+    for (int i = top; i > 0; i--) {
+      ROM.add(new Command(Opcode.SRL, restr, new Arg(i), test));
+      ROM.add(new Command(Opcode.SUB, limit, testr, test));
+      if (constant) {
+        ROM.add(new Command(Opcode.SUB, restr,
+            new Arg((short) (divisor << i)), temp));
+      } else {
+        ROM.add(new Command(Opcode.SL, arg2, new Arg(i), temp));
+        ROM.add(new Command(Opcode.SUB, restr, tempr, temp));
+      }
+      ROM.add(new Command(Opcode.MLZ, testr, tempr, rest));
+      if (!quotients) {
+        continue;
+      }
+      Arg bit = new Arg((short) (1 << i));
+      if (i == top) {
+        ROM.add(new Command(Opcode.SRA, testr, new Arg(15), quotient));
+        ROM.add(new Command(Opcode.AND, quotientr, bit, quotient));
+      } else {
+        ROM.add(new Command(Opcode.ADD, quotientr, bit, temp));
+        ROM.add(new Command(Opcode.MLZ, testr, tempr, quotient));
+      }
+    }
+    ROM.add(new Command(Opcode.SUB, restr, arg2, temp));
+    if (constant && divisor < 0x8000) {
+      ROM.add(new Command(Opcode.SUB, limit, restr, test));
+      if (remainderDest != null) {
+        ROM.add(new Command(Opcode.MLZ, testr, tempr, rest));
+        ROM.add(new Command(Opcode.MLZ, new Arg(-1), restr, remainderDest));
+      }
+      if (quotients) {
+        ROM.add(new Command(Opcode.SRL, testr, new Arg(15), temp));
+        ROM.add(new Command(Opcode.OR, quotientr, tempr, quotientDest));
+      }
+      return;
+    }
+    // the remainder is below the divisor where the sign of this is set
+    Arg low = word.get();
+    Arg lowr = low.dup();
+    lowr.mode++;
+    ROM.add(new Command(Opcode.XOR, restr, arg2, test));
+    ROM.add(new Command(Opcode.OR, testr, tempr, test));
+    ROM.add(new Command(Opcode.ANT, restr, arg2, low));
+    ROM.add(new Command(Opcode.ANT, testr, lowr, test));
+    if (remainderDest != null) {
+      ROM.add(new Command(Opcode.MLZ, testr, restr, temp));
+      ROM.add(new Command(Opcode.MLZ, new Arg(-1), tempr, remainderDest));
+    }
+    if (quotients && top == 0) {
+      ROM.add(new Command(Opcode.SRA, testr, new Arg(15), temp));
+      ROM.add(new Command(Opcode.ADD, tempr, new Arg(1), quotientDest));
+    } else if (quotients) {
+      ROM.add(new Command(Opcode.SRA, testr, new Arg(15), temp));
+      ROM.add(new Command(Opcode.ADD, quotientr, tempr, temp));
+      ROM.add(new Command(Opcode.ADD, tempr, new Arg(1), quotientDest));
+    }
+  }
+
+  /**
+   * Divides by a variable through the shared routine. The operands and the
+   * address to return to are left in the routine's words, and the result is
+   * read from them once it returns.
+   * 
+   * @param ROM
+   *          command list to modify
+   * @param remainder
+   *          Whether to compile the remainder rather than the quotient
+   */
+  private void callDivide(ArrayList<Command> ROM, Arg arg1, Arg arg2,
+      Arg arg3, boolean remainder) {
+    if (divideRoutine == null) {
+      divideRoutine = newLoop("sub");
+      divideRoutine.name = "_divide";
+      for (String name : DIVIDE_WORDS) {
+        createWord(name);
+      }
+    }
+    Symbol returnLabel = symbols.intern("call" + nextLoopID++ + "_divide");
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), arg1,
+        new Arg(address.get("divide.dividend"))));
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), arg2,
+        new Arg(address.get("divide.divisor"))));
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(divideRoutine.begin(), 1), new Arg(programCounter, 0)));
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(returnLabel, 1),
+        new Arg(address.get("divide.return"))));
+    ROM.get(ROM.size() - 1).tags.add(returnLabel);
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(1,
+        address.get(remainder ? "divide.remainder" : "divide.quotient")),
+        arg3));
+  }
+
+  /**
+   * Appends the shared routine that divides by a variable, which the main
+   * program jumps over, as it does a subroutine. Its intermediate values are
+   * in words of its own, so that the scratch words of the statement that
+   * called it are left alone.
+   * 
+   * @param ROM
+   *          command list to modify
+   */
+  private void compileDivideRoutine(ArrayList<Command> ROM) {
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(divideRoutine.end(), 1), new Arg(programCounter, 0)));
+    compileDelaySlot(ROM);
+    ROM.get(ROM.size() - 1).tags.add(divideRoutine.begin());
+    Iterator<String> temporaries = Arrays.asList(DIVIDE_WORDS)
+        .subList(5, DIVIDE_WORDS.length).iterator();
+    divide(ROM, new Arg(1, address.get("divide.dividend")),
+        new Arg(1, address.get("divide.divisor")),
+        new Arg(address.get("divide.quotient")),
+        new Arg(address.get("divide.remainder")),
+        () -> new Arg(address.get(temporaries.next())));
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(1, address.get("divide.return")),
+        new Arg(address.get(ProgramCounter))));
+    compileDelaySlot(ROM);
+    ROM.get(ROM.size() - 1).tags.add(divideRoutine.end());
+  }
+
+  /**
+   * @return Whether an argument is a number known before linking
+   */
+  private static boolean isConstant(Arg a) {
+    return a.mode == 0 && a.tag == null;
+  }
+
+  /**
+   * Generated by compileCond Contains the information necessary to create a
+   * conditional move
+   */
+  static class Cond {
+    int type; // 0 = MNZ, 1 = MLZ, -1 = never
+    Arg address;
+  }
+
+  /**
+   * @param ROM
+   *          command list to modify
+   * @return The information necessary to create a conditional move
+   */
+  public Cond compileCond(ArrayList<Command> ROM) {
+    Arg arg1 = compileRef(ROM, false);
+    String op = "!=";
+    Arg arg2 = new Arg(0);
+    if (!tokens.peek().equals(";")) {
+      op = tokens.next();
+      arg2 = compileRef(ROM, false);
+    }
+    if (isConstant(arg1) && isConstant(arg2)) {
+      err.println(
+          "warning: constant condition at " + arg1 + " " + op + " " + arg2);
+    }
+    return compare(ROM, arg1, op, arg2);
+  }
+
+  /**
+   * Computes a value whose sign, or whether it is zero, tells whether a
+   * comparison holds. Like the loops, the comparisons of order use the sign
+   * of the difference, and equality uses the sign of (d - 1) &! d, which is
+   * negative only when the difference d is 0.
+   * 
+   * @param ROM
+   *          command list to modify
+   * @return A condition under which a conditional move happens exactly when
+   *         arg1 op arg2 holds
+   */
+  Cond compare(ArrayList<Command> ROM, Arg arg1, String op, Arg arg2) {
+    if (op.startsWith(">")) {
+      Arg temp = arg1;
+      arg1 = arg2;
+      arg2 = temp;
+      op = "<" + op.substring(1);
+    }
+    if (op.equals("<=") && isConstant(arg2)) {
+      arg2 = new Arg(arg2.val + 1);
+      op = "<";
+    } else if (op.equals("<=") && isConstant(arg1)) {
+      arg1 = new Arg(arg1.val - 1);
+      op = "<";
+    }
+    if ((op.equals("==") || op.equals("!=")) && isConstant(arg1)
+        && arg1.val == 0) {
+      arg1 = arg2;
+      arg2 = new Arg(0);
+    }
+
+    Cond res = new Cond();
+    if (negation(op) == null) {
+      err.println("error: condition " + op + " not supported");
+      res.type = -1;
+    } else if (isConstant(arg1) && isConstant(arg2)) {
+      short difference = (short) (arg1.val - arg2.val);
+      if (op.equals("!=") ? difference != 0
+          : op.equals("==") ? difference == 0 : difference < 0) {
+        res.type = 1;
+        res.address = new Arg(-1);
+      } else {
+        res.type = -1;
+      }
+    } else if (op.equals("!=")) {
+      res.type = 0;
+      res.address = difference(ROM, arg1, arg2);
+    } else if (op.equals("<")) {
+      res.type = 1;
+      res.address = difference(ROM, arg1, arg2);
+    } else if (op.equals("<=")) {
+      if (!isConstant(arg2)) {
+        freeS(arg2);
+      }
+      Arg temp = mallocS();
+      Arg tempr = temp.dup();
+      tempr.mode++;
+      ROM.add(new Command(Opcode.ADD, arg2, new Arg(1), temp));
+      ROM.add(new Command(Opcode.SUB, arg1, tempr, temp));
+      res.type = 1;
+      res.address = tempr;
+    } else {
+      Arg test = difference(ROM, arg1, arg2);
+      Arg temp = mallocS();
+      Arg tempr = temp.dup();
+      tempr.mode++;
+      ROM.add(new Command(Opcode.ADD, test, new Arg(-1), temp));
+      ROM.add(new Command(Opcode.ANT, tempr, test, temp));
+      res.type = 1;
+      res.address = tempr;
+    }
+    return res;
+  }
+
+  /**
+   * @return An argument reading arg1 - arg2, which is arg1 itself when arg2
+   *         is 0
+   */
+  private Arg difference(ArrayList<Command> ROM, Arg arg1, Arg arg2) {
+    if (isConstant(arg2) && arg2.val == 0) {
+      return arg1;
+    }
+    if (!isConstant(arg1)) {
+      freeS(arg1);
+    }
+    if (!isConstant(arg2)) {
+      freeS(arg2);
+    }
+    Arg temp = mallocS();
+    ROM.add(new Command(Opcode.SUB, arg1, arg2, temp));
+    Arg res = temp.dup();
+    res.mode++;
+    return res;
+  }
+
+  /**
+   * @return How many commands compare() adds for a comparison
+   */
+  private static int comparisonCost(Arg arg1, String op, Arg arg2) {
+    if (op.startsWith(">")) {
+      Arg temp = arg1;
+      arg1 = arg2;
+      arg2 = temp;
+      op = "<" + op.substring(1);
+    }
+    if (isConstant(arg1) && isConstant(arg2)) {
+      return 0;
+    } else if (op.equals("<=")) {
+      return isConstant(arg2) && arg2.val == -1 ? 0
+          : isConstant(arg1) || isConstant(arg2) ? 1 : 2;
+    }
+    int res = isConstant(arg2) && arg2.val == 0 || !op.equals("<")
+        && isConstant(arg1) && arg1.val == 0 ? 0 : 1;
+    return op.equals("==") ? res + 2 : res;
+  }
+
+  /**
+   * @return The comparison that holds exactly when op does not, or null if
+   *         op is not a comparison
+   */
+  private static String negation(String op) {
+    int i = Arrays.asList(COMPARISONS).indexOf(op);
+    return i < 0 ? null : COMPARISONS[COMPARISONS.length - 1 - i];
+  }
+
+  public void compileDoWhile(ArrayList<Command> ROM) {
+    OpenLoop loop = newLoop("doWhile");
+    tokens.next(); // do
+    String oBrace = tokens.next();
+    while (!oBrace.equals("{")) {
+      loop.name += "_" + oBrace;
+      oBrace = tokens.next();
+    }
+    loops.add(0, loop);
+    if (prevCall == null) {
+      if (ROM.size() == 0) {
+        compileDelaySlot(ROM); // kinda hacky
+      }
+      ROM.get(ROM.size() - 1).tags.add(loop.begin());
+    } else {
+      prevCall.tags.add(loop.begin());
+    }
+
+  }
+
+  /**
+   * @param ROM
+   *          command sequence to add delay slots to
+   */
+  public void compileDelaySlot(ArrayList<Command> ROM) {
+    ROM.add(new Command(Opcode.MLZ, new Arg(0), new Arg(0), new Arg(0)));
+  }
+
+  /**
+   * Declare a subroutine
+   * 
+   * @param ROM
+   *          command sequence to modify
+   */
+  public void compileSub(ArrayList<Command> ROM) {
+    tokens.next(); // sub
+    String name = tokens.next();
+    if (subroutine.get(name) != null) {
+      err.println("error: duplicate subroutine " + name);
+    }
+    createWord(name);
+    OpenLoop loop = newLoop("sub");
+    Subroutine sub = new Subroutine(this, name, loop);
+    loop.name = "_" + name;
+    loops.add(0, loop);
+    subs.add(0, sub);
+    subroutine.put(name, sub);
+    tokens.next(); // (
+    if (tokens.peek().equals(")")) {
+      tokens.next(); // )
+    }
+    while (!tokens.peek().equals("{")) {
+      sub.compileDef(tokens);
+    }
+    ROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(loop.end(), 1),
+        new Arg(programCounter, 0)));
+    compileDelaySlot(ROM);
+    ROM.get(ROM.size() - 1).tags.add(loop.begin());
+    Arg temp = mallocS();
+    loop.commands.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(1, sub.symbol, 0), new Arg(callStack, 0)));
+    loop.commands.add(new Command(Opcode.ADD, new Arg(1),
+        new Arg(1, sub.symbol, 0), temp));
+    loop.commands.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(2, sub.symbol, 0), new Arg(address.get(ProgramCounter))));
+    loop.commands.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(2, temp.val),
+        new Arg(0, sub.symbol, 0)));
+    freeS(temp);
+    tokens.next(); // {
+  }
+
+  /**
+   * @param ROM
+   * @param call
+   */
+  public void compileCall(ArrayList<Command> ROM, CallStatement call) {
+    ArrayList<Subroutine> oldsubs = new ArrayList<Subroutine>();
+    oldsubs.addAll(subs);
+    subs.clear();
+    subs.addAll(call.cursubs);
+    ArrayList<Command> tempROM = new ArrayList<Command>();
+    ArrayList<Command> pointerROM = new ArrayList<Command>();
+    int resume = tokens.mark();
+    tokens.rewind(call.start);
+    tokens.next(); // call
+    Arg pointer = null;
+    Arg theOGpointer = null;
+    String eq = null;
+    if (call.pointerName() == null) {
+      pointer = mallocS();
+    } else {
+      pointer = compileRef(pointerROM, true);
+      theOGpointer = pointer;
+      eq = tokens.next(); // =
+      if (call.returnsPointer) {
+        tempROM.addAll(pointerROM);
+      } else {
+        pointer = mallocS();
+      }
+    }
+    String subName = tokens.next();
+    Subroutine sub = subroutine.get(subName);
+    if (sub == null) {
+      err.print(
+          "error: undeclared subroutine at call " + subName + rmStatement());
+      tokens.rewind(resume);
+      return;
+    }
+    Arg temp = mallocS();
+    int ID = nextLoopID++;
+    Symbol returnLabel = symbols.intern("call" + ID + "_" + subName);
+    tempROM.add(
+        new Command(Opcode.ADD, new Arg(1, callStack, 0), new Arg(1), temp));
+    tempROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(1, sub.symbol, 0),
+        new Arg(1, temp.val)));
+    freeS(temp);
+    tempROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(1, callStack, 0), pointer));
+
+    tokens.next(); // (
+    if (tokens.peek().equals(")")) {
+      tokens.next(); // )
+    }
+    int argnum = 2; // the first two are call return and previous instance
+    // holds commands until after change-of-scope
+    ArrayList<Command> defArgROM = new ArrayList<Command>();
+    for (; !tokens.peek().equals(";")
+        && !tokens.peek().equals("."); argnum++) {
+      if (tokens.peek().equals(",")) {
+        tokens.next();
+        defArgROM.addAll(copies(sub.inits.get(argnum)));
+      } else {
+        String argName = sub.args.get(argnum);
+
+        String varName = tokens.peek();
+        if (tokens.peek(1).equals("[")) {
+          err.println("error: unsupported argument type at " + rmStatement());
+        } else if (arrayType.equals(varName)) {
+          err.println("error: unsupported argument type at " + rmStatement());
+        } else {
+          Arg source = compileRef(tempROM, false);
+          tokens.next(); // , or )
+
+          temp = mallocS();
+
+          tempROM.add(new Command(Opcode.ADD,
+              new Arg(pointer.mode + 1, pointer.val),
+              new Arg(symbols.intern(argName), 0, sub.symbol), temp));
+          tempROM.add(new Command(Opcode.MLZ, new Arg(-1), source,
+              new Arg(1, temp.val)));
+
+          freeS(temp);
+        }
+      }
+    }
+    // change of scope
+    tempROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(pointer.mode + 1, pointer.val), new Arg(sub.symbol, 0)));
+    tempROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(returnLabel, 1), new Arg(1, sub.symbol, 0)));
+    freeS(pointer);
+    tempROM.addAll(defArgROM);
+    for (; argnum < sub.args.size(); argnum++) {
+      tempROM.addAll(copies(sub.inits.get(argnum)));
+    }
+    tempROM.add(new Command(Opcode.MLZ, new Arg(-1),
+        new Arg(sub.loop.begin(), 1), new Arg(programCounter, 0)));
+    tempROM.add(new Command(Opcode.ADD, new Arg(sub.firstFreeRAM),
+        new Arg(1, sub.symbol, 0), new Arg(callStack, 0)));
+    tempROM.get(tempROM.size() - 1).tags.add(returnLabel);
+
+    if (tokens.next().equals(".")) {
+      String varname = "";
+      while (!tokens.peek().equals(";")) {
+        varname += tokens.next();
+      }
+      tokens.next(); // ;
+      tempROM.addAll(pointerROM);
+      temp = mallocS();
+      Arg theOGpointerR = theOGpointer.dup();
+      theOGpointerR.mode++;
+      tempROM.add(new Command(Opcode.ADD, new Arg(1, callStack, 0),
+          new Arg(symbols.intern(varname), 0, sub.symbol), temp));
+      if (eq.equals("=")) {
+        tempROM.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("+=")) {
+        tempROM.add(new Command(Opcode.ADD, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("-=")) {
+        tempROM.add(new Command(Opcode.SUB, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("&=")) {
+        tempROM.add(new Command(Opcode.AND, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("|=")) {
+        tempROM.add(new Command(Opcode.OR, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("^=")) {
+        tempROM.add(new Command(Opcode.XOR, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("&!=")) {
+        tempROM.add(new Command(Opcode.ANT, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals("<<=")) {
+        tempROM.add(new Command(Opcode.SL, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals(">>>=")) {
+        tempROM.add(new Command(Opcode.SRL, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else if (eq.equals(">>=")) {
+        tempROM.add(new Command(Opcode.SRA, theOGpointerR, new Arg(2, temp.val),
+            theOGpointer));
+      } else {
+        err.println("error: call operator not supported: " + eq);
+      }
+      freeS(temp);
+
+    }
+
+    tempROM.get(tempROM.size() - 1).tags.addAll(call.tags);
+    ROM.addAll(call.loc, tempROM);
+    tokens.rewind(resume);
+
+    subs.clear();
+    subs.addAll(oldsubs);
+  }
+
+  void compileReturn(ArrayList<Command> ROM) {
+    tokens.next(); // return
+    if (subs.size() == 0) {
+      err.println("error: invalid return at " + rmStatement());
+    }
+    Subroutine sub = subs.get(0);
+    if (tokens.peek().equals(";")) {
+      tokens.next();
+      for (Command c : sub.loop.commands) {
+        Command copy = c.dupWithoutTags();
+        // compiled from this statement, not from the subroutine's header
+        copy.source = null;
+        ROM.add(copy);
+      }
+    }
+
+  }
+
+  /**
+   * @param a
+   *          An argument to check for validity
+   * @param isDest
+   *          whether it is used as a destination (third argument)
+   * @return Whether it is a valid address, with constant arguments being signed
+   *         and addresses unsigned
+   */
+  public boolean checkBounds(Arg a, boolean isDest) {
+    if (a == null) {
+      err.println("error: null argument");
+      return false;
+    }
+    if (a.mode < 0 || a.mode > 3) {
+      err.println("error: impossible mode of " + a);
+      return false;
+    }
+    if (a.mode == 0 && !isDest) {
+      if (a.val > 65535 || a.val < Short.MIN_VALUE) {
+        err.println("warning: potential 2's complement overflow at " + a);
+        return false;
+      }
+    } else if (a.val > 65535 || a.val < 0) {
+      err.println("warning: potential unsigned overflow at " + a);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Allocate scratch addresses to hold intermediate values Generates new
+   * addresses if all existing addresses are bust
+   * 
+   * @return An argument pointing to a scratch address that can be used
+   */
+  public Arg mallocS() {
+    int i = busyScratch.nextClearBit(0);
+    if (i == scratch.size()) {
+      createWord("scratch" + i);
+      scratch.add(address.get("scratch" + i));
+    }
+    busyScratch.set(i);
+    return new Arg(scratch.get(i));
+  }
+
+  /**
+   * Frees all scratch addresses
+   */
+  public void clearS() {
+    busyScratch.clear();
+  }
+
+  /**
+   * Frees a single scratch address
+   * 
+   * @param s
+   *          argument pointing to a scratch address number
+   */
+  public void freeS(Arg s) {
+    int i = scratch.indexOf(s.val);
+    if (i >= 0) {
+      busyScratch.clear(i);
+    }
+  }
+}
@@ -0,0 +1,301 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of finished compiles. Entries are keyed by a hash of the
+ * source text, the compiler options, and the compiler's own class files, so
+ * a hit skips every phase of compilation.
+ */
+public class CompileCache {
+
+  /**
+   * Everything a compile produces that is written or printed afterwards
+   */
+  static class Entry {
+    int instructions;
+    int RAMsize;
+    String diagnostics;
+    String listing;
+    String maps;
+    String sourceMap;
+    // how often each optimization applied, as printed by --stats
+    String statistics;
+    // whether this came from the cache rather than the compiler
+    boolean hit;
+
+    /**
+     * Compiles a source without consulting any cache
+     *
+     * @param source
+     *          Source text, whose case is folded in place
+     * @return The rendered outputs, with diagnostics captured rather than
+     *         printed
+     */
+    static Entry compile(char[] source) throws IOException {
+      ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+      PrintStream err = new PrintStream(diagnostics, true);
+      CompilationContext context = new CompilationContext(err);
+      Program program = context.compile(Lexer.lex(source, err));
+      Entry res = of(program, diagnostics.toString());
+      StringWriter statistics = new StringWriter();
+      PrintWriter statisticsWriter = new PrintWriter(statistics);
+      context.writeStatistics(statisticsWriter);
+      statisticsWriter.flush();
+      res.statistics = statistics.toString();
+      return res;
+    }
+
+    /**
+     * @param program
+     *          A freshly compiled program
+     * @param diagnostics
+     *          Errors and warnings reported while compiling it
+     * @return The rendered outputs of the program
+     */
+    static Entry of(Program program, String diagnostics) throws IOException {
+      Entry res = new Entry();
+      res.instructions = program.ROM.size();
+      res.RAMsize = program.RAMmap.size();
+      res.diagnostics = diagnostics;
+      StringWriter listing = new StringWriter();
+      program.write(listing);
+      res.listing = listing.toString();
+      StringWriter maps = new StringWriter();
+      PrintWriter mapWriter = new PrintWriter(maps);
+      program.writeMaps(mapWriter);
+      mapWriter.flush();
+      res.maps = maps.toString();
+      StringWriter sourceMap = new StringWriter();
+      program.writeSourceMap(sourceMap);
+      res.sourceMap = sourceMap.toString();
+      return res;
+    }
+
+    /**
+     * Writes the listing, and the source map beside it
+     *
+     * @param outputfile
+     *          Name of the QFTASM file
+     */
+    void write(String outputfile) throws IOException {
+      try (Writer out = new BufferedWriter(new FileWriter(outputfile))) {
+        out.write(listing);
+      }
+      try (Writer out = new BufferedWriter(
+          new FileWriter(Program.sourceMapFile(outputfile)))) {
+        out.write(sourceMap);
+      }
+    }
+  }
+
+  static final String defaultDirectory = ".cogol-cache";
+  private static final String header = "cogol-cache 3";
+  private static String compilerDigest;
+
+  final Path dir;
+
+  CompileCache(Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * @param source
+   *          Complete source text
+   * @param options
+   *          Every compiler option that can change the output
+   * @return The cache key for compiling that source with those options
+   */
+  static String key(char[] source, String options) {
+    MessageDigest md = sha256();
+    md.update(compilerDigest().getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    md.update(options.getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    md.update(new String(source).getBytes(StandardCharsets.UTF_8));
+    return hex(md.digest());
+  }
+
+  /**
+   * @param source
+   *          Source text, whose case is folded in place
+   * @param options
+   *          Every compiler option that can change the output
+   * @return The outputs of compiling the source, from the cache if possible
+   */
+  Entry compile(char[] source, String options) throws IOException {
+    String key = key(source, options);
+    Entry res = get(key);
+    if (res != null) {
+      res.hit = true;
+      return res;
+    }
+    res = Entry.compile(source);
+    try {
+      put(key, res);
+    } catch (IOException e) {
+      System.err.println("warning: could not write to cache: " + e);
+    }
+    return res;
+  }
+
+  /**
+   * @param key
+   *          A key from key()
+   * @return The cached outputs, or null on a miss
+   */
+  Entry get(String key) {
+    Path file = dir.resolve(key);
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (BufferedReader in = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8)) {
+      if (!header.equals(in.readLine())) {
+        return null;
+      }
+      Entry res = new Entry();
+      res.instructions = Integer.parseInt(field(in, "instructions"));
+      res.RAMsize = Integer.parseInt(field(in, "ram"));
+      res.diagnostics = section(in, "diagnostics");
+      res.listing = section(in, "qftasm");
+      res.maps = section(in, "maps");
+      res.sourceMap = section(in, "srcmap");
+      res.statistics = section(in, "stats");
+      return res;
+    } catch (IOException | RuntimeException e) {
+      // a damaged entry is just a miss
+      return null;
+    }
+  }
+
+  /**
+   * Stores an entry. The file is written under a temporary name and moved
+   * into place, so concurrent readers never see half of it.
+   */
+  void put(String key, Entry entry) throws IOException {
+    Files.createDirectories(dir);
+    Path temp = Files.createTempFile(dir, key, ".tmp");
+    try (Writer out = Files.newBufferedWriter(temp,
+        StandardCharsets.UTF_8)) {
+      out.write(header + "\n");
+      out.write("instructions " + entry.instructions + "\n");
+      out.write("ram " + entry.RAMsize + "\n");
+      writeSection(out, "diagnostics", entry.diagnostics);
+      writeSection(out, "qftasm", entry.listing);
+      writeSection(out, "maps", entry.maps);
+      writeSection(out, "srcmap", entry.sourceMap);
+      writeSection(out, "stats", entry.statistics);
+    }
+    Files.move(temp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String field(BufferedReader in, String name)
+      throws IOException {
+    String line = in.readLine();
+    if (line == null || !line.startsWith(name + " ")) {
+      throw new IOException("expected " + name);
+    }
+    return line.substring(name.length() + 1);
+  }
+
+  // text is stored as its length in chars, a newline, and then the text
+  private static String section(BufferedReader in, String name)
+      throws IOException {
+    int length = Integer.parseInt(field(in, name));
+    char[] text = new char[length];
+    int read = 0;
+    while (read < length) {
+      int n = in.read(text, read, length - read);
+      if (n < 0) {
+        throw new IOException("truncated " + name);
+      }
+      read += n;
+    }
+    if (in.read() != '\n') {
+      throw new IOException("unterminated " + name);
+    }
+    return new String(text);
+  }
+
+  private static void writeSection(Writer out, String name, String text)
+      throws IOException {
+    out.write(name + " " + text.length() + "\n");
+    out.write(text);
+    out.write("\n");
+  }
+
+  /**
+   * @return A hash of the class files the compiler was loaded from, so that
+   *         entries made by any other build of the compiler never match
+   */
+  static synchronized String compilerDigest() {
+    if (compilerDigest == null) {
+      MessageDigest md = sha256();
+      try {
+        Path code = Paths.get(CompilationContext.class.getProtectionDomain()
+            .getCodeSource().getLocation().toURI());
+        if (Files.isDirectory(code)) {
+          List<Path> classes = new ArrayList<Path>();
+          try (Stream<Path> walk = Files.walk(code)) {
+            walk.filter(p -> p.toString().endsWith(".class"))
+                .forEach(classes::add);
+          }
+          classes.sort(null);
+          for (Path p : classes) {
+            md.update(code.relativize(p).toString()
+                .getBytes(StandardCharsets.UTF_8));
+            md.update(Files.readAllBytes(p));
+          }
+        } else {
+          md.update(Files.readAllBytes(code));
+        }
+      } catch (Exception e) {
+        // fall back to the one class that is always present
+        try (InputStream in = CompilationContext.class
+            .getResourceAsStream("CompilationContext.class")) {
+          md.update(in.readAllBytes());
+        } catch (IOException | NullPointerException e2) {
+          md.update(e.toString().getBytes(StandardCharsets.UTF_8));
+        }
+      }
+      compilerDigest = hex(md.digest());
+    }
+    return compilerDigest;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder res = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      res.append(Character.forDigit((b >> 4) & 15, 16))
+          .append(Character.forDigit(b & 15, 16));
+    }
+    return res.toString();
+  }
+}
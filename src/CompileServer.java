@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A long-running compiler that keeps the JVM warm between compiles. Requests
+ * and responses are plain lines, read from stdin and written to stdout, or
+ * exchanged over a socket bound to the loopback address.
+ *
+ * Requests:
+ *
+ * <pre>
+ * file SOURCE            compile a file, whose path is the rest of the line
+ * file SOURCE\tOUTPUT    compile a file and also write OUTPUT, the two paths
+ *                        separated by a tab, so either may contain spaces
+ * source                 compile the lines that follow, up to a line "."
+ *                        (a line of source starting with "." gets another
+ *                        "." in front of it)
+ * quit                   end the session
+ * </pre>
+ *
+ * Each response starts with "ok" or "error MESSAGE" and ends with a line
+ * ".". After "ok" come three sections, each a header line with a line count
+ * followed by that many lines: "diagnostics N" holds the compiler's errors
+ * and warnings, "qftasm N" the compiled program, and "maps N" the RAM maps.
+ */
+public class CompileServer {
+
+  /**
+   * Serves requests from stdin until it is closed or "quit" is received
+   *
+   * @param cache
+   *          Cache of earlier compiles, or null
+   * @throws IOException
+   */
+  public static void serve(CompileCache cache) throws IOException {
+    serve(
+        new BufferedReader(
+            new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+        new PrintWriter(new OutputStreamWriter(System.out,
+            StandardCharsets.UTF_8)),
+        cache);
+  }
+
+  /**
+   * Accepts connections on a loopback port, serving each one on its own
+   * thread
+   *
+   * @param port
+   *          Port to listen on
+   * @param cache
+   *          Cache of earlier compiles, or null
+   * @throws IOException
+   */
+  public static void listen(int port, CompileCache cache)
+      throws IOException {
+    try (ServerSocket server = new ServerSocket(port, 50,
+        InetAddress.getLoopbackAddress())) {
+      System.err.println("listening on " + server.getLocalSocketAddress());
+      while (true) {
+        Socket client = server.accept();
+        Thread t = new Thread(() -> {
+          try (Socket s = client) {
+            serve(
+                new BufferedReader(new InputStreamReader(s.getInputStream(),
+                    StandardCharsets.UTF_8)),
+                new PrintWriter(new OutputStreamWriter(s.getOutputStream(),
+                    StandardCharsets.UTF_8)),
+                cache);
+          } catch (IOException e) {
+            System.err.println("error: " + e);
+          }
+        });
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+  }
+
+  /**
+   * Handles requests until the input ends or "quit" is received
+   */
+  static void serve(BufferedReader in, PrintWriter out, CompileCache cache)
+      throws IOException {
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] words = line.split("\\s+");
+      if (words[0].equals("quit")) {
+        break;
+      } else if (words[0].equals("file") && words.length >= 2) {
+        String[] paths = line.substring("file".length()).trim().split("\t");
+        if (paths.length > 2) {
+          fail("more than two paths: " + line, out);
+        } else {
+          try (Reader source = new FileReader(paths[0].trim())) {
+            respond(Lexer.readAll(source),
+                paths.length == 2 ? paths[1].trim() : null, cache, out);
+          } catch (IOException e) {
+            fail(e.toString(), out);
+          }
+        }
+      } else if (words[0].equals("source") && words.length == 1) {
+        StringBuilder text = new StringBuilder();
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+          if (line.startsWith(".")) {
+            line = line.substring(1);
+          }
+          text.append(line).append('\n');
+        }
+        char[] chars = new char[text.length()];
+        text.getChars(0, text.length(), chars, 0);
+        respond(chars, null, cache, out);
+      } else {
+        fail("unknown request: " + line, out);
+      }
+      out.flush();
+    }
+    out.flush();
+  }
+
+  /**
+   * Compiles a source and writes the response
+   */
+  static void respond(char[] source, String outputfile, CompileCache cache,
+      PrintWriter out) {
+    CompileCache.Entry entry;
+    try {
+      if (cache != null) {
+        entry = cache.compile(source, Compiler.CODEGEN_OPTIONS);
+      } else {
+        entry = CompileCache.Entry.compile(source);
+      }
+      if (outputfile != null) {
+        entry.write(outputfile);
+      }
+    } catch (Exception e) {
+      fail(e.toString(), out);
+      return;
+    }
+
+    out.println("ok");
+    section("diagnostics", entry.diagnostics, out);
+    section("qftasm", entry.listing, out);
+    section("maps", entry.maps, out);
+    out.println(".");
+  }
+
+  static void section(String name, String text, PrintWriter out) {
+    List<String> lines = new ArrayList<String>();
+    for (String line : text.split("\n")) {
+      if (!line.isEmpty()) {
+        lines.add(line);
+      }
+    }
+    out.println(name + " " + lines.size());
+    for (String line : lines) {
+      out.println(line);
+    }
+  }
+
+  static void fail(String message, PrintWriter out) {
+    out.println("error " + message.replace('\n', ' '));
+    out.println(".");
+  }
+}
@@ -0,0 +1,291 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Follows the RAM addresses whose values are known constants through the
+ * whole program, across statements and around loops, and reads the
+ * constants instead: an argument reading a known address reads the value
+ * itself, an operation on two constants becomes a move of its result, and a
+ * move on a known condition is left for the PeepholeOptimizer to make into a
+ * jump or a nop.
+ *
+ * Nothing is assumed about RAM when the program starts. A value is known at
+ * the start of a block when it is known, and the same, at the end of every
+ * block control can come from, and the addresses of blocks are known as the
+ * blocks themselves, so that they still move with them. A write through a
+ * pointer that is not known may change any address but the scratch ones,
+ * which no pointer refers to.
+ */
+public class ConstantPropagator {
+
+  // values known at once, so that the states stay small in large programs
+  static final int LIMIT = 64;
+
+  // scratch addresses, sorted
+  final int[] scratch;
+  // arguments that read a known value instead of an address
+  int propagated = 0;
+  // operations replaced by their result
+  int folded = 0;
+  // the value of each known address, either an Integer word or the
+  // BasicBlock whose address it is, at the start and end of each block
+  private final IdentityHashMap<BasicBlock, Map<Integer, Object>> in =
+      new IdentityHashMap<BasicBlock, Map<Integer, Object>>();
+  private final IdentityHashMap<BasicBlock, Map<Integer, Object>> out =
+      new IdentityHashMap<BasicBlock, Map<Integer, Object>>();
+
+  ConstantPropagator(int[] scratch) {
+    this.scratch = scratch.clone();
+    Arrays.sort(this.scratch);
+  }
+
+  /**
+   * @param graph
+   *          Program to rewrite, whose edges are brought up to date
+   * @return Whether anything was rewritten
+   */
+  boolean run(ControlFlowGraph graph) {
+    if (graph.fixedLayout || graph.blocks.isEmpty()) {
+      return false;
+    }
+    solve(graph);
+    boolean res = false;
+    for (BasicBlock b : graph.blocks) {
+      if (!in.containsKey(b)) {
+        // never reached
+        continue;
+      }
+      Map<Integer, Object> known = new HashMap<Integer, Object>(in.get(b));
+      for (int i = 0; i < b.code.size(); i++) {
+        Command c = b.code.get(i);
+        Command rewritten = rewrite(c, known);
+        if (rewritten != c) {
+          b.code.set(i, rewritten);
+          res = true;
+        }
+        transfer(rewritten, known);
+      }
+    }
+    in.clear();
+    out.clear();
+    if (res) {
+      graph.update();
+    }
+    return res;
+  }
+
+  /**
+   * Finds the values known at the start and end of every block. The values
+   * known at the start of a block only ever shrink, so the search ends.
+   */
+  private void solve(ControlFlowGraph graph) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      Map<Integer, Object> indirect = null;
+      for (BasicBlock p : graph.indirect.predecessors) {
+        indirect = meet(indirect, out.get(p));
+      }
+      for (int k = 0; k < graph.blocks.size(); k++) {
+        BasicBlock b = graph.blocks.get(k);
+        Map<Integer, Object> from = k == 0 ? new HashMap<Integer, Object>()
+            : null;
+        for (BasicBlock p : b.predecessors) {
+          from = meet(from, p == graph.indirect ? indirect : out.get(p));
+        }
+        if (from == null) {
+          continue;
+        }
+        Map<Integer, Object> before = in.get(b);
+        Map<Integer, Object> now = meet(before, from);
+        if (before != null && now.size() == before.size()) {
+          continue;
+        }
+        in.put(b, now);
+        Map<Integer, Object> after = new HashMap<Integer, Object>(now);
+        for (Command c : b.code) {
+          transfer(c, after);
+        }
+        out.put(b, after);
+        changed = true;
+      }
+    }
+  }
+
+  /**
+   * @return The values two states agree on, where null is a state not yet
+   *         found; neither is changed, and either may be returned
+   */
+  private static Map<Integer, Object> meet(Map<Integer, Object> a,
+      Map<Integer, Object> b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.size() > b.size()) {
+      return meet(b, a);
+    }
+    Map<Integer, Object> res = new HashMap<Integer, Object>();
+    for (Map.Entry<Integer, Object> e : a.entrySet()) {
+      if (e.getValue().equals(b.get(e.getKey()))) {
+        res.put(e.getKey(), e.getValue());
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Changes the values known before a command to those known after it
+   */
+  private void transfer(Command c, Map<Integer, Object> known) {
+    Object dest = value(c.arg3.mode, c.arg3.val, known);
+    if (!(dest instanceof Integer)) {
+      known.keySet().removeIf(address -> !isScratch(address));
+      return;
+    }
+    int address = (Integer) dest & 0xFFFF;
+    Boolean moves = moves(c, known);
+    if (Arg.isVolatile(address) || moves == Boolean.FALSE) {
+      return;
+    }
+    Object result = result(c, known);
+    if (moves == null && result != null
+        && result.equals(known.get(address))) {
+      return;
+    }
+    if (moves == null || result == null
+        || known.size() >= LIMIT && !known.containsKey(address)) {
+      known.remove(address);
+    } else {
+      known.put(address, result);
+    }
+  }
+
+  /**
+   * @return True if a command writes its destination, false if it does not,
+   *         or null if that is not known
+   */
+  private static Boolean moves(Command c, Map<Integer, Object> known) {
+    if (c.opcode.isOperation()) {
+      return true;
+    }
+    Object condition = value(c.arg1, known);
+    if (!(condition instanceof Integer)) {
+      return null;
+    }
+    int v = (Integer) condition;
+    return c.opcode == Opcode.MLZ ? v < 0 : v != 0;
+  }
+
+  /**
+   * @return The value a command writes, or null if it is not known
+   */
+  private static Object result(Command c, Map<Integer, Object> known) {
+    Object a = value(c.arg1, known);
+    Object b = value(c.arg2, known);
+    if (!c.opcode.isOperation()) {
+      return b;
+    }
+    if (a instanceof Integer && b instanceof Integer) {
+      return c.opcode.apply((Integer) a, (Integer) b);
+    }
+    return null;
+  }
+
+  private static Object value(Arg a, Map<Integer, Object> known) {
+    return a.mode == 0 && a.block != null ? a.block
+        : value(a.mode, a.val, known);
+  }
+
+  /**
+   * @return The value an argument reads, or null if it is not known
+   */
+  private static Object value(int mode, int val, Map<Integer, Object> known) {
+    Object res = (int) (short) val;
+    for (int i = 0; i < mode; i++) {
+      if (!(res instanceof Integer)) {
+        return null;
+      }
+      res = lookup((Integer) res, known);
+    }
+    return res;
+  }
+
+  /**
+   * @return What is known to be at an address, or null if it is not known
+   */
+  private static Object lookup(int address, Map<Integer, Object> known) {
+    address &= 0xFFFF;
+    return Arg.isVolatile(address) ? null : known.get(address);
+  }
+
+  private boolean isScratch(int address) {
+    return Arrays.binarySearch(scratch, address) >= 0;
+  }
+
+  /**
+   * @return The command with what is known about its arguments put in them,
+   *         or the command itself if nothing is known
+   */
+  private Command rewrite(Command c, Map<Integer, Object> known) {
+    // a jump must keep to the addresses of blocks
+    boolean jump = c.arg3.mode == 0 && c.arg3.val == 0;
+    Arg arg1 = reduce(c.arg1, known, false);
+    Arg arg2 = reduce(c.arg2, known, jump);
+    Arg arg3 = c.arg3;
+    while (arg3.mode > 0) {
+      Object v = lookup(arg3.val, known);
+      if (!(v instanceof Integer)
+          || arg3.mode == 1 && ((Integer) v & 0xFFFF) == 0) {
+        break;
+      }
+      arg3 = new Arg(arg3.mode - 1, (Integer) v & 0xFFFF);
+    }
+    if (arg1 == c.arg1 && arg2 == c.arg2 && arg3 == c.arg3
+        && (!c.opcode.isOperation() || arg1.mode > 0 || arg2.mode > 0)) {
+      return c;
+    }
+    propagated += (arg1 != c.arg1 ? 1 : 0) + (arg2 != c.arg2 ? 1 : 0)
+        + (arg3 != c.arg3 ? 1 : 0);
+    Command res = PeepholeRule.copy(c);
+    res.arg1 = arg1;
+    res.arg2 = arg2;
+    res.arg3 = arg3;
+    if (c.opcode.isOperation() && !jump && arg1.mode == 0
+        && arg1.block == null && arg2.mode == 0 && arg2.block == null) {
+      res.opcode = Opcode.MLZ;
+      res.arg1 = new Arg(PeepholeOptimizer.ALWAYS);
+      res.arg2 = new Arg(c.opcode.apply(arg1.val, arg2.val));
+      folded++;
+    }
+    return res;
+  }
+
+  /**
+   * @param codeOnly
+   *          Whether only the address of a block may be read as a constant
+   * @return The argument, or one reading what is known about it more
+   *         directly
+   */
+  private static Arg reduce(Arg a, Map<Integer, Object> known,
+      boolean codeOnly) {
+    Arg res = a;
+    while (res.mode > 0) {
+      Object v = lookup(res.val, known);
+      if (v instanceof BasicBlock && res.mode == 1) {
+        res = ControlFlowGraph.reference((BasicBlock) v);
+      } else if (v instanceof Integer && res.mode == 1 && !codeOnly) {
+        res = new Arg((Integer) v);
+      } else if (v instanceof Integer && res.mode > 1) {
+        res = new Arg(res.mode - 1, (Integer) v & 0xFFFF);
+      } else {
+        break;
+      }
+    }
+    return res;
+  }
+}
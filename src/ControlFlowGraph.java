@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The linked program as basic blocks joined by the ways control can pass
+ * between them. A block starts at the first command, at every address a
+ * label refers to, and after the delay slot of every jump. Arguments that
+ * hold the address of a block refer to the block itself, so blocks can be
+ * changed, removed or moved, and the addresses are only recomputed when the
+ * blocks are laid out as a ROM again.
+ *
+ * Subroutines return by jumping to an address held in RAM, which may be any
+ * block whose address is stored as data. Every such jump leads to one node
+ * standing for all of them, whose successors are those blocks. A program
+ * that jumps to a numbered address of its own cannot be moved, and is marked
+ * as having a fixed layout.
+ */
+public class ControlFlowGraph {
+
+  // in layout order
+  final ArrayList<BasicBlock> blocks = new ArrayList<BasicBlock>();
+  // the empty block just past the end of the ROM, reaching which halts
+  final BasicBlock exit = new BasicBlock(-1);
+  // the target of every jump to a computed address, which is followed by
+  // each block whose address is taken
+  final BasicBlock indirect = new BasicBlock(-2);
+  // whether the program jumps to addresses no label refers to
+  boolean fixedLayout = false;
+
+  /**
+   * @param ROM
+   *          Linked commands, whose first one is run first
+   * @return The graph of those commands, which it now owns
+   */
+  static ControlFlowGraph build(List<Command> ROM) {
+    ControlFlowGraph res = new ControlFlowGraph();
+    int size = ROM.size();
+    Set<Symbol> labels = new HashSet<Symbol>();
+    for (Command c : ROM) {
+      labels.addAll(c.tags);
+    }
+    boolean[] leader = new boolean[size + 1];
+    leader[0] = true;
+    for (int i = 0; i < size; i++) {
+      Command c = ROM.get(i);
+      if (c.isJump()) {
+        leader[Math.min(i + 2, size)] = true;
+      }
+      for (Arg a : new Arg[] { c.arg1, c.arg2, c.arg3 }) {
+        if (isCodeAddress(a, labels, size)) {
+          leader[a.val] = true;
+        }
+      }
+    }
+    // the block starting at each address
+    BasicBlock[] at = new BasicBlock[size + 1];
+    for (int i = 0; i < size; i++) {
+      if (leader[i]) {
+        BasicBlock b = new BasicBlock(res.blocks.size());
+        b.address = i;
+        res.blocks.add(b);
+        at[i] = b;
+      }
+      res.blocks.get(res.blocks.size() - 1).code.add(ROM.get(i));
+    }
+    res.exit.address = size;
+    at[size] = res.exit;
+
+    for (Command c : ROM) {
+      for (Arg a : new Arg[] { c.arg1, c.arg2, c.arg3 }) {
+        if (isCodeAddress(a, labels, size)) {
+          a.block = at[a.val];
+          if (a != c.arg2 || !c.isDirectJump()) {
+            a.block.addressTaken = true;
+          }
+        }
+      }
+      if (c.isDirectJump() && c.arg2.block == null) {
+        res.fixedLayout = true;
+      }
+    }
+    for (int k = 0; k < res.blocks.size(); k++) {
+      BasicBlock b = res.blocks.get(k);
+      Command last = b.code.get(b.code.size() - 1);
+      if (last.isJump() && b.address + b.code.size() < size) {
+        // the delay slot is the target of a jump of its own
+        res.fixedLayout = true;
+      }
+      Command jump = b.jump();
+      b.next = jump != null && jump.alwaysMoves() ? null : res.following(k);
+    }
+    res.connect();
+    return res;
+  }
+
+  /**
+   * @return Whether an argument is the address of a command, which is the
+   *         case when it was linked from a label
+   */
+  static boolean isCodeAddress(Arg a, Set<Symbol> labels, int size) {
+    return a.mode == 0 && a.tag != null && labels.contains(a.tag)
+        && a.val >= 0 && a.val <= size;
+  }
+
+  /**
+   * @return The block placed after block k, or the exit
+   */
+  BasicBlock following(int k) {
+    return k + 1 < blocks.size() ? blocks.get(k + 1) : exit;
+  }
+
+  /**
+   * Recomputes the successors and predecessors of every block from the
+   * blocks' code, to be called after changing it
+   */
+  void connect() {
+    indirect.successors.clear();
+    indirect.predecessors.clear();
+    exit.predecessors.clear();
+    for (BasicBlock b : blocks) {
+      b.successors.clear();
+      b.predecessors.clear();
+    }
+    for (BasicBlock b : blocks) {
+      if (b.addressTaken) {
+        indirect.successors.add(b);
+        b.predecessors.add(indirect);
+      }
+    }
+    for (BasicBlock b : blocks) {
+      if (b.next != null) {
+        edge(b, b.next);
+      }
+      Command jump = b.jump();
+      if (jump == null) {
+        continue;
+      }
+      if (jump.isDirectJump()) {
+        if (jump.arg2.block != null) {
+          edge(b, jump.arg2.block);
+        }
+      } else {
+        edge(b, indirect);
+      }
+    }
+  }
+
+  /**
+   * Brings the graph up to date after the commands of its blocks have
+   * changed, which may have made a conditional jump unconditional or removed
+   * the last use of a block's address as data
+   */
+  void update() {
+    for (BasicBlock b : blocks) {
+      b.addressTaken = false;
+    }
+    for (BasicBlock b : blocks) {
+      Command jump = b.jump();
+      if (jump != null && jump.alwaysMoves()) {
+        b.next = null;
+      }
+      for (Command c : b.code) {
+        for (Arg a : new Arg[] { c.arg1, c.arg2, c.arg3 }) {
+          if (a.block != null && (a != c.arg2 || !c.isDirectJump())) {
+            a.block.addressTaken = true;
+          }
+        }
+      }
+    }
+    connect();
+  }
+
+  private static void edge(BasicBlock from, BasicBlock to) {
+    if (!from.successors.contains(to)) {
+      from.successors.add(to);
+      to.predecessors.add(from);
+    }
+  }
+
+  /**
+   * Numbers the blocks in order and gives each its ROM address
+   */
+  void number() {
+    int address = 0;
+    for (int k = 0; k < blocks.size(); k++) {
+      BasicBlock b = blocks.get(k);
+      b.id = k;
+      b.address = address;
+      address += b.code.size();
+    }
+    exit.address = address;
+  }
+
+  /**
+   * Places the blocks in order, adding a jump wherever a block no longer lies
+   * just before the one it falls through to, and updates every code address
+   *
+   * @return The commands of the blocks, with the final addresses
+   */
+  ArrayList<Command> layout() {
+    for (int k = 0; k < blocks.size(); k++) {
+      BasicBlock b = blocks.get(k);
+      if (b.next != null && b.next != following(k)) {
+        BasicBlock bridge = new BasicBlock(k + 1);
+        bridge.code.add(new Command(Opcode.MLZ, new Arg(-1), reference(b.next),
+            new Arg(0)));
+        bridge.code.add(new Command(Opcode.MLZ, new Arg(0), new Arg(0),
+            new Arg(0)));
+        blocks.add(k + 1, bridge);
+        b.next = bridge;
+      }
+    }
+    number();
+    ArrayList<Command> res = new ArrayList<Command>();
+    for (BasicBlock b : blocks) {
+      for (Command c : b.code) {
+        c.arg1 = relocate(c.arg1);
+        c.arg2 = relocate(c.arg2);
+        c.arg3 = relocate(c.arg3);
+        res.add(c);
+      }
+    }
+    connect();
+    return res;
+  }
+
+  /**
+   * @param target
+   *          A block
+   * @return A constant argument holding its address
+   */
+  static Arg reference(BasicBlock target) {
+    Arg res = new Arg(target.address);
+    res.block = target;
+    return res;
+  }
+
+  /**
+   * @return The argument, or a copy with its block's current address
+   */
+  private static Arg relocate(Arg a) {
+    if (a.block == null || a.val == a.block.address) {
+      return a;
+    }
+    Arg res = a.dup();
+    res.resolve(a.block.address);
+    return res;
+  }
+
+  public String toString() {
+    StringBuilder res = new StringBuilder();
+    for (BasicBlock b : blocks) {
+      res.append(b).append(b.addressTaken ? " *" : "").append(" ->");
+      for (BasicBlock s : b.successors) {
+        res.append(' ').append(s == exit ? "exit"
+            : s == indirect ? "indirect" : s.toString());
+      }
+      res.append('\n');
+    }
+    return res.toString();
+  }
+}
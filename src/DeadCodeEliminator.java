@@ -0,0 +1,169 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Removes commands that can never run or whose results are never used:
+ * blocks that cannot be reached from the start of the program, writes to
+ * scratch addresses that are not read before being overwritten or
+ * abandoned, and nops other than delay slots. A dead write in a delay slot
+ * becomes a nop instead.
+ *
+ * Only the scratch addresses are followed, as described by ScratchLiveness.
+ *
+ * Labels on removed commands move to the nearest command that remains,
+ * forward for begin labels and back for the rest, so that the blocks the
+ * profiler finds by them stay nested.
+ */
+public class DeadCodeEliminator {
+
+  final ScratchLiveness liveness;
+  // commands removed, by reason
+  int unreachable = 0;
+  int deadStores = 0;
+  int nops = 0;
+  private final Set<Command> removed = Collections
+      .newSetFromMap(new IdentityHashMap<Command, Boolean>());
+
+  DeadCodeEliminator(int[] scratch) {
+    liveness = new ScratchLiveness(scratch);
+  }
+
+  /**
+   * @param graph
+   *          Program to shrink, whose edges are brought up to date
+   * @return Whether anything was removed
+   */
+  boolean run(ControlFlowGraph graph) {
+    if (graph.fixedLayout || graph.blocks.isEmpty()) {
+      return false;
+    }
+    // every block is kept until the labels have been moved
+    ArrayList<BasicBlock> all = new ArrayList<BasicBlock>(graph.blocks);
+    removeUnreachable(graph);
+    removeDeadStores(graph);
+    removeNops(graph);
+    if (removed.isEmpty()) {
+      return false;
+    }
+    moveLabels(all);
+    for (BasicBlock b : graph.blocks) {
+      b.code.removeIf(removed::contains);
+    }
+    removed.clear();
+    graph.update();
+    return true;
+  }
+
+  /**
+   * Removes the blocks that cannot be reached from the first one. A block is
+   * reached by control flowing to it or by its address being used in a block
+   * that is reached.
+   */
+  void removeUnreachable(ControlFlowGraph graph) {
+    Set<BasicBlock> reached = Collections
+        .newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+    ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+    work.add(graph.blocks.get(0));
+    reached.add(graph.blocks.get(0));
+    while (!work.isEmpty()) {
+      BasicBlock b = work.poll();
+      ArrayList<BasicBlock> next = new ArrayList<BasicBlock>(b.successors);
+      for (Command c : b.code) {
+        for (Arg a : new Arg[] { c.arg1, c.arg2, c.arg3 }) {
+          if (a.block != null) {
+            next.add(a.block);
+          }
+        }
+      }
+      for (BasicBlock n : next) {
+        if (n != graph.exit && reached.add(n)) {
+          work.add(n);
+        }
+      }
+    }
+    for (BasicBlock b : graph.blocks) {
+      if (!reached.contains(b)) {
+        removed.addAll(b.code);
+        unreachable += b.code.size();
+      }
+    }
+    if (graph.blocks.removeIf(b -> !reached.contains(b))) {
+      // the blocks left may still be linked to the ones removed
+      graph.update();
+    }
+  }
+
+  /**
+   * Removes writes to scratch addresses that are dead, found by solving for
+   * the scratch addresses live at the end of each block
+   */
+  void removeDeadStores(ControlFlowGraph graph) {
+    liveness.solve(graph);
+    for (BasicBlock b : graph.blocks) {
+      BitSet live = liveness.liveOut(b);
+      int delaySlot = b.jump() == null ? -1 : b.code.size() - 1;
+      for (int i = b.code.size() - 1; i >= 0; i--) {
+        Command c = b.code.get(i);
+        int written = liveness.written(c);
+        if (written >= 0 && !live.get(written) && !c.isJump()) {
+          if (i == delaySlot) {
+            b.code.set(i, PeepholeOptimizer.nop(c));
+          } else {
+            removed.add(c);
+          }
+          deadStores++;
+        } else {
+          liveness.transfer(c, live);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the nops that are not delay slots
+   */
+  void removeNops(ControlFlowGraph graph) {
+    for (BasicBlock b : graph.blocks) {
+      int delaySlot = b.jump() == null ? -1 : b.code.size() - 1;
+      for (int i = 0; i < b.code.size(); i++) {
+        Command c = b.code.get(i);
+        if (i != delaySlot && c.neverMoves() && !removed.contains(c)) {
+          removed.add(c);
+          nops++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Gives the labels of removed commands to the nearest remaining ones
+   *
+   * @param blocks
+   *          Every block, in layout order, including those removed
+   */
+  private void moveLabels(ArrayList<BasicBlock> blocks) {
+    Command last = null;
+    ArrayList<Symbol> pending = new ArrayList<Symbol>();
+    for (BasicBlock b : blocks) {
+      for (Command c : b.code) {
+        if (!removed.contains(c)) {
+          c.tags.addAll(0, pending);
+          pending.clear();
+          last = c;
+          continue;
+        }
+        for (Symbol tag : c.tags) {
+          if (last == null || tag.name.startsWith("begin")) {
+            pending.add(tag);
+          } else {
+            last.tags.add(tag);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Runs the same programs as Simulator, several times faster, by decoding the
+ * ROM once into flat arrays and running straight-line code a basic block at a
+ * time.
+ *
+ * Every operand becomes an index into RAM plus a number of further
+ * dereferences. Constants are copied into a pool after the 65536 words the
+ * program can address, so a constant and a direct reference are both a single
+ * array read, and most commands need no dereference loop at all. The address
+ * of a destination is read the same way as a source.
+ *
+ * A basic block ends at each command whose destination is the program counter
+ * itself. blockEnd is the jump table: it maps any address execution can
+ * arrive at, including the odd return address, to the end of the block that
+ * runs from there, so the cycle limit is checked once per block rather than
+ * once per command. A command that reaches the program counter through a
+ * pointer is still caught as it runs, and execution then falls back to single
+ * steps until the delay slot has been run.
+ */
+public class FastSimulator extends Simulator {
+
+  // kinds of command: opcode ordinal times two, plus one if any operand
+  // needs further dereferencing; the constants follow the order of Opcode
+  private static final int DEREF = 1;
+  private static final int MNZ = 0;
+  private static final int MLZ = 2;
+  private static final int ADD = 4;
+  private static final int SUB = 6;
+  private static final int AND = 8;
+  private static final int OR = 10;
+  private static final int XOR = 12;
+  private static final int ANT = 14;
+  private static final int SL = 16;
+  private static final int SRL = 18;
+  private static final int SRA = 20;
+
+  // RAM followed by the constant pool
+  final int[] memory;
+  // kind, first source, second source and destination of each command
+  final int[] decoded;
+  // further dereferences of each operand, two bits each
+  final int[] depth;
+  final int[] blockEnd;
+
+  FastSimulator(PackedROM ROM) {
+    super(ROM);
+    int n = ROM.size();
+    decoded = new int[4 * n];
+    depth = new int[n];
+    blockEnd = new int[n];
+    int[] pool = new int[3 * n];
+    int pooled = 0;
+    for (int i = 0; i < n; i++) {
+      if (ROM.isIrregular(i)) {
+        // reported by run() if it is ever reached
+        decoded[4 * i] = -1;
+        continue;
+      }
+      long c = ROM.code[i];
+      int[] index = new int[3];
+      int deref = 0;
+      for (int arg = 1; arg <= 3; arg++) {
+        int mode = PackedROM.mode(c, arg);
+        int val = PackedROM.value(c, arg) & WORD;
+        if (mode == 0) {
+          pool[pooled] = val;
+          index[arg - 1] = RAM_SIZE + pooled++;
+        } else {
+          index[arg - 1] = val;
+          depth[i] |= (mode - 1) << (2 * (arg - 1));
+          deref |= mode - 1;
+        }
+      }
+      decoded[4 * i] = PackedROM.opcode(c).ordinal() << 1
+          | (deref == 0 ? 0 : DEREF);
+      System.arraycopy(index, 0, decoded, 4 * i + 1, 3);
+    }
+    memory = new int[RAM_SIZE + pooled];
+    System.arraycopy(pool, 0, memory, RAM_SIZE, pooled);
+    int end = n - 1;
+    for (int i = n - 1; i >= 0; i--) {
+      if (decoded[4 * i] < 0) {
+        blockEnd[i] = i;
+        end = i - 1;
+        continue;
+      }
+      if (jumps(i)) {
+        end = i;
+      }
+      blockEnd[i] = end;
+    }
+  }
+
+  /**
+   * @return Whether command i always writes to the program counter
+   */
+  private boolean jumps(int i) {
+    int dest = decoded[4 * i + 3];
+    return depth[i] >> 4 == 0 && dest >= RAM_SIZE && memory[dest] == 0;
+  }
+
+  @Override
+  long run(long limit) {
+    final int[] M = memory;
+    final int[] D = decoded;
+    final int display = displayAddress;
+    final int n = blockEnd.length;
+    long start = cycles;
+    long end = cycles + limit;
+    while (cycles < end) {
+      int first = current;
+      if (first < 0 || first >= n) {
+        halted = true;
+        break;
+      }
+      // a block runs whole, and then the delay slot of its jump; anything
+      // else, such as the delay slot of a jump through a pointer, is run one
+      // command at a time
+      int last = blockEnd[first];
+      boolean single = next != first + 1 || last + 1 >= n
+          || D[4 * (last + 1)] < 0 || last + 2 - first > end - cycles;
+      if (single && D[4 * first] < 0) {
+        throw new IllegalStateException("cannot run command " + first
+            + ": " + ROM.appendTo(new StringBuilder(), first));
+      }
+      int pc = first;
+      int stop = single ? first : last;
+      // where a jump goes, once one is taken, and where a second jump in its
+      // delay slot goes
+      int target = -1;
+      int following = -1;
+      for (;;) {
+        M[0] = pc;
+        int k = 4 * pc;
+        int d;
+        switch (D[k]) {
+        case MNZ:
+          if (M[D[k + 1]] == 0) {
+            d = -1;
+            break;
+          }
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 2]];
+          break;
+        case MLZ:
+          if ((M[D[k + 1]] & 0x8000) == 0) {
+            d = -1;
+            break;
+          }
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 2]];
+          break;
+        case ADD:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] + M[D[k + 2]] & WORD;
+          break;
+        case SUB:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] - M[D[k + 2]] & WORD;
+          break;
+        case AND:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] & M[D[k + 2]];
+          break;
+        case OR:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] | M[D[k + 2]];
+          break;
+        case XOR:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] ^ M[D[k + 2]];
+          break;
+        case ANT:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] & ~M[D[k + 2]];
+          break;
+        case SL:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] << (M[D[k + 2]] & 15) & WORD;
+          break;
+        case SRL:
+          d = M[D[k + 3]];
+          M[d] = M[D[k + 1]] >>> (M[D[k + 2]] & 15);
+          break;
+        case SRA:
+          d = M[D[k + 3]];
+          M[d] = (short) M[D[k + 1]] >> (M[D[k + 2]] & 15) & WORD;
+          break;
+        default:
+          d = executeIndirect(pc, M);
+          break;
+        }
+        if (d == 0) {
+          if (single || target >= 0) {
+            following = M[0] + 1;
+          } else {
+            target = M[0] + 1;
+            stop = pc + 1;
+          }
+        } else if (d == display) {
+          displayed(cycles + pc - first, d);
+        }
+        if (pc == stop) {
+          break;
+        }
+        pc++;
+      }
+      cycles += pc + 1 - first;
+      if (single) {
+        current = next;
+        next = following >= 0 ? following : next + 1;
+      } else if (target < 0) {
+        current = pc + 1;
+        next = pc + 2;
+      } else {
+        current = target;
+        next = following >= 0 ? following : target + 1;
+      }
+    }
+    System.arraycopy(M, 0, RAM, 0, RAM_SIZE);
+    return cycles - start;
+  }
+
+  private void displayed(long cycle, int d) {
+    displayWrites++;
+    if (trace != null) {
+      trace.println(cycle + ": " + memory[d]);
+    }
+  }
+
+  /**
+   * Runs a command with pointer operands
+   *
+   * @return The address written, or -1 if a conditional move did not happen
+   */
+  private int executeIndirect(int i, int[] M) {
+    int levels = depth[i];
+    int a = load(M, decoded[4 * i + 1], levels & 3);
+    int b = load(M, decoded[4 * i + 2], levels >> 2 & 3);
+    int result;
+    switch (decoded[4 * i] & ~DEREF) {
+    case MNZ:
+      if (a == 0) {
+        return -1;
+      }
+      result = b;
+      break;
+    case MLZ:
+      if ((a & 0x8000) == 0) {
+        return -1;
+      }
+      result = b;
+      break;
+    case ADD:
+      result = a + b;
+      break;
+    case SUB:
+      result = a - b;
+      break;
+    case AND:
+      result = a & b;
+      break;
+    case OR:
+      result = a | b;
+      break;
+    case XOR:
+      result = a ^ b;
+      break;
+    case ANT:
+      result = a & ~b;
+      break;
+    case SL:
+      result = a << (b & 15);
+      break;
+    case SRL:
+      result = a >>> (b & 15);
+      break;
+    default:
+      result = (short) a >> (b & 15);
+      break;
+    }
+    int d = load(M, decoded[4 * i + 3], levels >> 4);
+    M[d] = result & WORD;
+    return d;
+  }
+
+  private static int load(int[] M, int index, int levels) {
+    int res = M[index];
+    for (int k = 0; k < levels; k++) {
+      res = M[res];
+    }
+    return res;
+  }
+}
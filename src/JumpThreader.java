@@ -0,0 +1,134 @@
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Shortens the paths control takes between blocks. A reference to a block
+ * that does nothing but pass control on, by being empty or by jumping
+ * straight away with a nop in the delay slot, is made to the block control
+ * ends up at instead, which leaves chains of jumps, such as the ones that
+ * close several loops at once, as a single jump. A jump to the block that
+ * control reaches anyway by falling through is removed, and its delay slot
+ * is run as an ordinary command.
+ *
+ * The blocks passed over are left for the DeadCodeEliminator to remove once
+ * nothing refers to them.
+ */
+public class JumpThreader {
+
+  // references to blocks that were retargeted
+  int threaded = 0;
+  // jumps to the next block that were removed
+  int removed = 0;
+  // the block control ends up at from each block passed over so far
+  private final IdentityHashMap<BasicBlock, BasicBlock> destinations =
+      new IdentityHashMap<BasicBlock, BasicBlock>();
+
+  /**
+   * @param graph
+   *          Program to rewrite, whose edges are brought up to date
+   * @return Whether anything was changed
+   */
+  boolean run(ControlFlowGraph graph) {
+    if (graph.fixedLayout) {
+      return false;
+    }
+    boolean res = false;
+    destinations.clear();
+    for (BasicBlock b : graph.blocks) {
+      for (Command c : b.code) {
+        Arg arg1 = thread(c.arg1, graph);
+        Arg arg2 = thread(c.arg2, graph);
+        Arg arg3 = thread(c.arg3, graph);
+        res |= arg1 != c.arg1 || arg2 != c.arg2 || arg3 != c.arg3;
+        c.arg1 = arg1;
+        c.arg2 = arg2;
+        c.arg3 = arg3;
+      }
+    }
+    for (int k = 0; k < graph.blocks.size(); k++) {
+      res |= removeJumpToNext(graph.blocks.get(k), graph.following(k));
+    }
+    if (res) {
+      graph.update();
+    }
+    return res;
+  }
+
+  /**
+   * @return The argument, or a copy referring to the block control ends up at
+   *         from the one it refers to
+   */
+  private Arg thread(Arg a, ControlFlowGraph graph) {
+    if (a.block == null || passesTo(a.block) == null) {
+      return a;
+    }
+    BasicBlock target = destination(a.block, graph);
+    if (target == a.block) {
+      return a;
+    }
+    Arg res = a.dup();
+    res.block = target;
+    threaded++;
+    return res;
+  }
+
+  /**
+   * @return The first block reached from b that does something, or a block
+   *         of a cycle of blocks that do nothing
+   */
+  private BasicBlock destination(BasicBlock b, ControlFlowGraph graph) {
+    Set<BasicBlock> path = Collections
+        .newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+    BasicBlock res = b;
+    while (res != graph.exit && !destinations.containsKey(res)) {
+      BasicBlock next = passesTo(res);
+      if (next == null || !path.add(res)) {
+        break;
+      }
+      res = next;
+    }
+    res = destinations.getOrDefault(res, res);
+    for (BasicBlock passed : path) {
+      destinations.put(passed, res);
+    }
+    return res;
+  }
+
+  /**
+   * @return The block a block passes control to without doing anything else,
+   *         or null if it does something
+   */
+  private static BasicBlock passesTo(BasicBlock b) {
+    if (b.code.isEmpty()) {
+      return b.next;
+    }
+    Command jump = b.jump();
+    if (b.code.size() == 2 && jump != null && jump.alwaysMoves()
+        && b.code.get(1).neverMoves()) {
+      return b.target();
+    }
+    return null;
+  }
+
+  /**
+   * Removes the jump of a block if it goes where control would go without it
+   *
+   * @param following
+   *          The block placed after b
+   * @return Whether the jump was removed
+   */
+  private boolean removeJumpToNext(BasicBlock b, BasicBlock following) {
+    BasicBlock target = b.target();
+    if (target == null
+        || target != (b.jump().alwaysMoves() ? following : b.next)) {
+      return false;
+    }
+    Command jump = b.code.remove(b.code.size() - 2);
+    // the labels stay at the same address
+    b.code.get(b.code.size() - 1).tags.addAll(0, jump.tags);
+    b.next = target;
+    removed++;
+    return true;
+  }
+}
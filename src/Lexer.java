@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+
+/**
+ * Splits Cogol source into typed tokens in a single pass over the whole text.
+ * Characters are classified through lookup tables, and each token records the
+ * line and column where it starts.
+ */
+public class Lexer {
+
+  // character classes
+  private static final byte OTHER = 0;
+  // characters that are their own token
+  private static final byte SINGLETON = 1;
+  // characters that are their own tokens, but repetitions and combinations
+  // are grouped
+  private static final byte REP = 2;
+  // separators, repetition is ignored
+  private static final byte SEP = 3;
+  private static final byte DIGIT = 4;
+  private static final byte QUOTE = 5;
+  private static final byte COMMENT = 6;
+  private static final byte NEWLINE = 7;
+  private static final byte MINUS = 8;
+
+  private static final byte[] charClass = new byte[128];
+  private static final boolean[] forbidden = new boolean[128];
+  // shared single-character strings, so one-character tokens cost nothing
+  private static final String[] charToken = new String[128];
+  private static final char[] lower = new char[128];
+
+  static {
+    for (char c : ",.:;{}()[]$\\".toCharArray()) {
+      charClass[c] = SINGLETON;
+    }
+    for (char c : "<>&|!=+-^*/%".toCharArray()) {
+      charClass[c] = REP;
+    }
+    for (char c : " \t".toCharArray()) {
+      charClass[c] = SEP;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      charClass[c] = DIGIT;
+    }
+    for (char c : "~`@'".toCharArray()) {
+      forbidden[c] = true;
+    }
+    charClass['"'] = QUOTE;
+    charClass['#'] = COMMENT;
+    charClass['\n'] = NEWLINE;
+    charClass['\r'] = NEWLINE;
+    charClass['-'] = MINUS;
+    for (char c = 0; c < 128; c++) {
+      charToken[c] = String.valueOf(c);
+      lower[c] = Character.toLowerCase(c);
+    }
+  }
+
+  private static byte classOf(char c) {
+    return c < 128 ? charClass[c] : OTHER;
+  }
+
+  /**
+   * @param token
+   *          A previously emitted token
+   * @return Whether the token ends in an operator character
+   */
+  private static boolean endsWithRep(String token) {
+    if (token.length() == 0) {
+      return false;
+    }
+    char last = token.charAt(token.length() - 1);
+    return classOf(last) == REP || last == '-';
+  }
+
+  /**
+   * @param in
+   *          Source text, read to the end
+   * @return The tokens of the entire source
+   * @throws IOException
+   */
+  public static TokenStream lex(Reader in) throws IOException {
+    return lex(readAll(in), System.err);
+  }
+
+  /**
+   * @param in
+   *          Source text
+   * @return The entire contents
+   * @throws IOException
+   */
+  static char[] readAll(Reader in) throws IOException {
+    char[] buf = new char[1 << 16];
+    int len = 0;
+    int n;
+    while ((n = in.read(buf, len, buf.length - len)) >= 0) {
+      len += n;
+      if (len == buf.length) {
+        char[] grown = new char[buf.length * 2];
+        System.arraycopy(buf, 0, grown, 0, len);
+        buf = grown;
+      }
+    }
+    char[] res = new char[len];
+    System.arraycopy(buf, 0, res, 0, len);
+    return res;
+  }
+
+  /**
+   * Splits text into tokens. Case is folded in place.
+   *
+   * @param src
+   *          Source text
+   * @return The tokens of the entire source
+   */
+  public static TokenStream lex(char[] src) {
+    return lex(src, System.err);
+  }
+
+  /**
+   * @param src
+   *          Source text, whose case is folded in place
+   * @param err
+   *          Destination of error messages
+   * @return The tokens of the entire source
+   */
+  public static TokenStream lex(char[] src, PrintStream err) {
+    return new Lexer(src, err).run();
+  }
+
+  private final char[] src;
+  private final PrintStream err;
+  private final TokenStream tokens = new TokenStream();
+  // the current token is src[start..i), optionally behind a minus sign;
+  // tokens that are not contiguous in the source are spilled instead
+  private int start = -1;
+  private boolean negative = false;
+  private final StringBuilder spill = new StringBuilder();
+  private boolean spilled = false;
+  private int curLine;
+  private int curCol;
+  // previously created identifier and number strings, by content
+  private String[] names = new String[1024];
+  private int nameCount = 0;
+
+  private Lexer(char[] src, PrintStream err) {
+    this.src = src;
+    this.err = err;
+  }
+
+  private TokenStream run() {
+    // whether currently in quotes, or in a comment
+    boolean quote = false;
+    boolean comment = false;
+    int line = 1;
+    int lineStart = 0;
+    int i = 0;
+    for (; i < src.length; i++) {
+      char c = src[i];
+      c = c < 128 ? lower[c] : Character.toLowerCase(c);
+      src[i] = c;
+      byte cls = classOf(c);
+      if (cls == NEWLINE) {
+        flush(i);
+        if (c == '\r' && i + 1 < src.length && src[i + 1] == '\n') {
+          i++;
+        }
+        quote = false;
+        comment = false;
+        line++;
+        lineStart = i + 1;
+        continue;
+      }
+      if (comment) {
+        continue;
+      }
+      int col = i - lineStart + 1;
+      if (c < 128 && forbidden[c]) {
+        err.println("error: forbidden character " + c + " at line "
+            + line + ", column " + col);
+      }
+      if (quote) {
+        if (cls == QUOTE) {
+          // exiting quotes, even an empty string is a token
+          if (start < 0 && !spilled) {
+            tokens.add("", TokenStream.Kind.IDENTIFIER, curLine, curCol);
+          } else {
+            flush(i);
+          }
+          quote = false;
+        } else {
+          accumulate(i, c, line, col);
+        }
+        continue;
+      }
+      switch (cls) {
+      case COMMENT:
+        flush(i);
+        comment = true;
+        break;
+      case QUOTE:
+        // entering quotes
+        quote = true;
+        if (start >= 0) {
+          spill(i);
+        } else if (!spilled) {
+          curLine = line;
+          curCol = col;
+        }
+        break;
+      case MINUS:
+        flush(i);
+        if (tokens.size() > 0
+            && (tokens.last().endsWith("-") || tokens.last().endsWith("+"))) {
+          tokens.setLast(tokens.last() + "-");
+        } else {
+          tokens.add(charToken[c], TokenStream.Kind.OPERATOR, line, col);
+        }
+        break;
+      case SINGLETON:
+        flush(i);
+        tokens.add(charToken[c], TokenStream.Kind.PUNCTUATION, line, col);
+        break;
+      case REP:
+        flush(i);
+        if (tokens.size() > 0 && endsWithRep(tokens.last())) {
+          tokens.setLast(tokens.last() + c);
+        } else {
+          tokens.add(charToken[c], TokenStream.Kind.OPERATOR, line, col);
+        }
+        break;
+      case SEP:
+        flush(i);
+        break;
+      default:
+        if (start < 0 && !spilled && cls == DIGIT && tokens.size() > 1
+            && tokens.last().equals("-")) {
+          // a minus sign directly after an operator is part of a number
+          String ereyest = tokens.get(tokens.size() - 2);
+          if (endsWithRep(ereyest) || ereyest.endsWith(" ")
+              || ereyest.endsWith("\t")) {
+            int minus = tokens.size() - 1;
+            accumulate(i, c, tokens.line(minus), tokens.column(minus));
+            tokens.removeLast();
+            negative = true;
+            break;
+          }
+        }
+        accumulate(i, c, line, col);
+      }
+    }
+    // end of text reached, whatever's left is a token
+    flush(i);
+    return tokens;
+  }
+
+  /**
+   * Adds the character at src[i] to the current token
+   */
+  private void accumulate(int i, char c, int line, int col) {
+    if (spilled) {
+      spill.append(c);
+    } else if (start < 0) {
+      start = i;
+      curLine = line;
+      curCol = col;
+    }
+  }
+
+  /**
+   * Copies the current token out of the source, because it is about to
+   * become non-contiguous
+   */
+  private void spill(int i) {
+    if (negative) {
+      spill.append('-');
+    }
+    spill.append(src, start, i - start);
+    spilled = true;
+    negative = false;
+    start = -1;
+  }
+
+  /**
+   * Emits the current token, if there is one
+   *
+   * @param i
+   *          Index one past the token's last character
+   */
+  private void flush(int i) {
+    String text;
+    if (spilled) {
+      text = spill.toString();
+      spill.setLength(0);
+      spilled = false;
+    } else if (start >= 0) {
+      text = name(start, i - start);
+    } else {
+      return;
+    }
+    tokens.add(text, kindOf(text), curLine, curCol);
+    start = -1;
+    negative = false;
+  }
+
+  /**
+   * @return A string of the current token's characters, shared with every
+   *         earlier token of the same spelling
+   */
+  private String name(int from, int len) {
+    int hash = negative ? '-' : 0;
+    for (int j = from; j < from + len; j++) {
+      hash = 31 * hash + src[j];
+    }
+    int mask = names.length - 1;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    for (String name = names[slot]; name != null; name = names[slot]) {
+      if (matches(name, from, len)) {
+        return name;
+      }
+      slot = (slot + 1) & mask;
+    }
+    String name = new String(src, from, len);
+    if (negative) {
+      name = "-" + name;
+    }
+    names[slot] = name;
+    if (++nameCount * 2 > names.length) {
+      rehash();
+    }
+    return name;
+  }
+
+  private boolean matches(String name, int from, int len) {
+    int offset = negative ? 1 : 0;
+    if (name.length() != len + offset || negative && name.charAt(0) != '-') {
+      return false;
+    }
+    for (int j = 0; j < len; j++) {
+      if (name.charAt(j + offset) != src[from + j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    String[] old = names;
+    names = new String[old.length * 2];
+    int mask = names.length - 1;
+    for (String name : old) {
+      if (name != null) {
+        int hash = 0;
+        for (int j = 0; j < name.length(); j++) {
+          hash = 31 * hash + name.charAt(j);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (names[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        names[slot] = name;
+      }
+    }
+  }
+
+  /**
+   * @param text
+   *          Accumulated characters of a word-like token
+   * @return INTEGER for an optionally negated run of digits, otherwise
+   *         IDENTIFIER
+   */
+  private static TokenStream.Kind kindOf(String text) {
+    int start = text.length() > 1 && text.charAt(0) == '-' ? 1 : 0;
+    if (start == text.length()) {
+      return TokenStream.Kind.IDENTIFIER;
+    }
+    for (int i = start; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return TokenStream.Kind.IDENTIFIER;
+      }
+    }
+    return TokenStream.Kind.INTEGER;
+  }
+}
@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves the tags of a program's joined ROM. A tag naming a label is bound
+ * to the ROM address of the command carrying that label; any other tag is a
+ * RAM address, either of a global or of a subroutine's local variable. Tags
+ * are symbols, so labels and globals are looked up by index in arrays built
+ * once per link, and a local by name in its own subroutine.
+ */
+public class Linker {
+
+  final CompilationContext context;
+
+  Linker(CompilationContext context) {
+    this.context = context;
+  }
+
+  /**
+   * @param ROM
+   *          The whole program, in its final order, whose arguments are
+   *          resolved in place
+   */
+  void link(List<Command> ROM) {
+    SymbolTable symbols = context.symbols;
+    // where each symbol is bound, by ID, or -1 if it is not
+    int[] labels = new int[symbols.size()];
+    int[] globals = new int[symbols.size()];
+    Arrays.fill(labels, -1);
+    for (int i = 0; i < ROM.size(); i++) {
+      for (Symbol tag : ROM.get(i).tags) {
+        labels[tag.id] = i;
+      }
+    }
+    for (int id = 0; id < globals.length; id++) {
+      Integer loc = context.address.get(symbols.get(id).name);
+      globals[id] = loc == null ? -1 : loc;
+    }
+    for (Command c : ROM) {
+      resolve(c.arg1, labels, globals);
+      resolve(c.arg2, labels, globals);
+      resolve(c.arg3, labels, globals);
+    }
+  }
+
+  /**
+   * Fills in an argument's value from its tag. Labels take precedence over
+   * RAM addresses. A local variable is looked up by name in its own
+   * subroutine, so linking stays linear in the size of the program.
+   */
+  void resolve(Arg arg, int[] labels, int[] globals) {
+    Symbol tag = arg.tag;
+    if (tag == null) {
+      return;
+    }
+    if (arg.sub == null) {
+      if (globals[tag.id] >= 0) {
+        arg.resolve(globals[tag.id] + arg.tagoffset);
+      }
+    } else {
+      Subroutine s = context.subroutine.get(arg.sub.name);
+      Integer local = s == null ? null : s.address.get(tag.name);
+      if (local == null) {
+        context.err.println("error: invalid subroutine name at " + arg);
+      } else {
+        arg.resolve(local + arg.tagoffset);
+      }
+    }
+    if (labels[tag.id] >= 0) {
+      arg.resolve(labels[tag.id] + arg.tagoffset);
+    }
+  }
+}
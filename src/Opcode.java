@@ -0,0 +1,75 @@
+/**
+ * The operations of the QFT instruction set. Every command reads its first two
+ * arguments and may write its third.
+ */
+public enum Opcode {
+  // if A != 0 then C = B
+  MNZ,
+  // if A < 0 then C = B
+  MLZ,
+  ADD, SUB, AND, OR, XOR,
+  // A & ~B
+  ANT,
+  // shifts of A by B: left, right logical, right arithmetic
+  SL, SRL, SRA;
+
+  private static final Opcode[] values = values();
+
+  /**
+   * @param ordinal
+   *          Position of an opcode in declaration order
+   * @return That opcode
+   */
+  static Opcode of(int ordinal) {
+    return values[ordinal];
+  }
+
+  /**
+   * @return Whether this computes its result from both arguments, rather than
+   *         moving the second on a condition
+   */
+  boolean isOperation() {
+    return this != MNZ && this != MLZ;
+  }
+
+  /**
+   * @param a
+   *          First argument, as a word
+   * @param b
+   *          Second argument, as a word
+   * @return The result of an operation, as a signed word
+   */
+  int apply(int a, int b) {
+    a &= 0xFFFF;
+    b &= 0xFFFF;
+    switch (this) {
+    case ADD:
+      return (short) (a + b);
+    case SUB:
+      return (short) (a - b);
+    case AND:
+      return (short) (a & b);
+    case OR:
+      return (short) (a | b);
+    case XOR:
+      return (short) (a ^ b);
+    case ANT:
+      return (short) (a & ~b);
+    case SL:
+      return (short) (a << (b & 15));
+    case SRL:
+      return (short) (a >>> (b & 15));
+    case SRA:
+      return (short) a >> (b & 15);
+    default:
+      throw new IllegalStateException(this + " is not an operation");
+    }
+  }
+
+  /**
+   * @return Whether the first two arguments can be swapped
+   */
+  boolean isSymmetric() {
+    return this == ADD || this == AND || this == OR || this == XOR;
+  }
+}
@@ -2,21 +2,45 @@ import java.util.ArrayList;
 
 public class OpenLoop {
 
-  static int nextLoopID = 0;
-
   String type;
   int id;
   String name;
   ArrayList<Command> commands;
+  private final SymbolTable symbols;
+  // labels of the start and end of the block, interned on first use, by
+  // which time the name is complete
+  private Symbol begin;
+  private Symbol end;
 
-  public OpenLoop(String type) {
+  public OpenLoop(String type, int id, SymbolTable symbols) {
     super();
     this.type = type;
-    this.id = nextLoopID++;
+    this.id = id;
+    this.symbols = symbols;
     this.name = "";
     this.commands = new ArrayList<Command>();
   }
 
+  /**
+   * @return The label at the start of the block
+   */
+  Symbol begin() {
+    if (begin == null) {
+      begin = symbols.intern("begin" + this);
+    }
+    return begin;
+  }
+
+  /**
+   * @return The label at the end of the block
+   */
+  Symbol end() {
+    if (end == null) {
+      end = symbols.intern("end" + this);
+    }
+    return end;
+  }
+
   public String toString() {
     return capitalize(type) + id + name;
   }
@@ -0,0 +1,153 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A final ROM packed into one long per command, so that it can be scanned
+ * without pointer chasing or boxing. The opcode takes the low 4 bits, followed
+ * by each argument's mode (2 bits) and value (17 bits, signed). A command that
+ * does not fit, because an argument was never resolved or is out of range, is
+ * flagged in the top bit and kept beside the buffer as a Command.
+ */
+public class PackedROM {
+
+  static final int OPCODE_BITS = 4;
+  static final int MODE_BITS = 2;
+  static final int VALUE_BITS = 17;
+  static final int ARG_BITS = MODE_BITS + VALUE_BITS;
+  static final long IRREGULAR = 1L << 63;
+  static final int MIN_VALUE = -(1 << (VALUE_BITS - 1));
+  static final int MAX_VALUE = (1 << (VALUE_BITS - 1)) - 1;
+  private static final Symbol[] NO_TAGS = new Symbol[0];
+
+  final long[] code;
+  // labels of each command, kept only for the listing
+  private final Symbol[][] tags;
+  private final Map<Integer, Command> irregular =
+      new HashMap<Integer, Command>();
+
+  PackedROM(long[] code, Symbol[][] tags) {
+    this.code = code;
+    this.tags = tags;
+  }
+
+  /**
+   * @param ROM
+   *          Linked commands
+   * @return The same commands, packed
+   */
+  static PackedROM of(List<Command> ROM) {
+    PackedROM res = new PackedROM(new long[ROM.size()],
+        new Symbol[ROM.size()][]);
+    for (int i = 0; i < ROM.size(); i++) {
+      Command c = ROM.get(i);
+      if (fits(c.arg1) && fits(c.arg2) && fits(c.arg3)) {
+        res.code[i] = pack(c.opcode, c.arg1.mode, c.arg1.val, c.arg2.mode,
+            c.arg2.val, c.arg3.mode, c.arg3.val);
+      } else {
+        res.code[i] = IRREGULAR | c.opcode.ordinal();
+        res.irregular.put(i, c);
+      }
+      res.tags[i] = c.tags.isEmpty() ? NO_TAGS
+          : c.tags.toArray(new Symbol[c.tags.size()]);
+    }
+    return res;
+  }
+
+  /**
+   * @return Whether an argument can be packed
+   */
+  static boolean fits(Arg a) {
+    return a.resolved && a.mode >= 0 && a.mode < 1 << MODE_BITS
+        && a.val >= MIN_VALUE && a.val <= MAX_VALUE;
+  }
+
+  static long pack(Opcode opcode, int mode1, int val1, int mode2, int val2,
+      int mode3, int val3) {
+    return opcode.ordinal() | packArg(mode1, val1) << OPCODE_BITS
+        | packArg(mode2, val2) << (OPCODE_BITS + ARG_BITS)
+        | packArg(mode3, val3) << (OPCODE_BITS + 2 * ARG_BITS);
+  }
+
+  private static long packArg(int mode, int val) {
+    return mode | (val & ((1L << VALUE_BITS) - 1)) << MODE_BITS;
+  }
+
+  static Opcode opcode(long command) {
+    return Opcode.of((int) command & ((1 << OPCODE_BITS) - 1));
+  }
+
+  /**
+   * @param command
+   *          A packed command
+   * @param arg
+   *          1, 2 or 3
+   * @return The mode of that argument
+   */
+  static int mode(long command, int arg) {
+    return (int) (command >>> shift(arg)) & ((1 << MODE_BITS) - 1);
+  }
+
+  /**
+   * @param command
+   *          A packed command
+   * @param arg
+   *          1, 2 or 3
+   * @return The value of that argument, sign-extended
+   */
+  static int value(long command, int arg) {
+    int raw = (int) (command >>> (shift(arg) + MODE_BITS));
+    return raw << (32 - VALUE_BITS) >> (32 - VALUE_BITS);
+  }
+
+  private static int shift(int arg) {
+    return OPCODE_BITS + (arg - 1) * ARG_BITS;
+  }
+
+  /**
+   * @return Number of commands
+   */
+  int size() {
+    return code.length;
+  }
+
+  /**
+   * @param i
+   *          Index of a command
+   * @return Whether the command could not be packed
+   */
+  boolean isIrregular(int i) {
+    return (code[i] & IRREGULAR) != 0;
+  }
+
+  /**
+   * @param i
+   *          Index of a command
+   * @return The labels on that command
+   */
+  Symbol[] tags(int i) {
+    return tags[i];
+  }
+
+  /**
+   * @param res
+   *          Buffer to write the QFTASM form of command i into
+   * @return The same buffer
+   */
+  StringBuilder appendTo(StringBuilder res, int i) {
+    if (isIrregular(i)) {
+      return irregular.get(i).appendTo(res);
+    }
+    long c = code[i];
+    res.append(opcode(c).name());
+    for (int arg = 1; arg <= 3; arg++) {
+      res.append(' ').append(Arg.getModePrefix(mode(c, arg)))
+          .append(value(c, arg));
+    }
+    res.append(';');
+    for (Symbol tag : tags[i]) {
+      res.append(' ').append(tag.name);
+    }
+    return res;
+  }
+}
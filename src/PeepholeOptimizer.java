@@ -0,0 +1,197 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites short runs of commands within each basic block by a list of
+ * PeepholeRules, sliding a window over every block until no rule applies.
+ * Windows never span two blocks, so a rule can assume that control only
+ * enters at the first command of its window.
+ *
+ * A rewrite may change the block's jump, but may not add a jump anywhere
+ * else, or move commands into or out of a delay slot, so a window that holds
+ * the jump or its delay slot must be replaced one for one. The same holds
+ * for every window when the layout is fixed.
+ */
+public class PeepholeOptimizer {
+
+  // a constant that is the condition of a move that always happens
+  static final int ALWAYS = -1;
+
+  static final PeepholeRule[] RULES = {
+      // SUB A c D is ADD A -c D, which can be reordered
+      new PeepholeRule("subtract-constant", w -> {
+        Command c = w.get(0);
+        if (c.arg2.block != null) {
+          return null;
+        }
+        Command res = PeepholeRule.copy(c);
+        res.opcode = Opcode.ADD;
+        res.arg2 = new Arg(-c.arg2.val);
+        return List.of(res);
+      }, new PeepholeRule.Pattern(Opcode.SUB, null, null, 0, null, null,
+          null)),
+      // symmetric operations read the deeper argument first
+      new PeepholeRule("order-operands", w -> {
+        Command c = w.get(0);
+        if (!c.opcode.isSymmetric() || c.arg1.mode > c.arg2.mode
+            || c.arg1.mode == c.arg2.mode && c.arg1.val >= c.arg2.val) {
+          return null;
+        }
+        Command res = PeepholeRule.copy(c);
+        res.arg1 = c.arg2;
+        res.arg2 = c.arg1;
+        return List.of(res);
+      }, PeepholeRule.ANY),
+      // a move on a constant condition either always or never happens
+      new PeepholeRule("constant-condition", w -> {
+        Command c = w.get(0);
+        if (c.neverMoves()) {
+          return c.isEquivalent(Opcode.MLZ, 0, 0, 0, 0, 0, 0) ? null
+              : List.of(nop(c));
+        }
+        if (c.opcode == Opcode.MLZ && c.arg1.val == ALWAYS) {
+          return null;
+        }
+        Command res = PeepholeRule.copy(c);
+        res.opcode = Opcode.MLZ;
+        res.arg1 = new Arg(ALWAYS);
+        return List.of(res);
+      }, new PeepholeRule.Pattern(Opcode.MLZ, 0, null, null, null, null,
+          null)),
+      new PeepholeRule("constant-condition", w -> {
+        Command c = w.get(0);
+        if (c.neverMoves()) {
+          return List.of(nop(c));
+        }
+        Command res = PeepholeRule.copy(c);
+        res.opcode = Opcode.MLZ;
+        res.arg1 = new Arg(ALWAYS);
+        return List.of(res);
+      }, new PeepholeRule.Pattern(Opcode.MNZ, 0, null, null, null, null,
+          null)),
+      // a value just moved to an address is read from where it came from,
+      // which leaves the move to be removed if nothing else reads it; the
+      // program counter and the display do not keep what is moved to them
+      new PeepholeRule("forward-move", w -> {
+        Command move = w.get(0);
+        Command c = w.get(1);
+        int dest = move.arg3.val;
+        Arg value = move.arg2;
+        if (Arg.isVolatile(dest) || value.mode > 1
+            || value.mode == 1 && (value.val == dest
+                || Arg.isVolatile(value.val))
+            || !move.arg3.resolved) {
+          return null;
+        }
+        Command res = PeepholeRule.copy(c);
+        res.arg1 = forward(c.arg1, dest, value);
+        res.arg2 = forward(c.arg2, dest, value);
+        res.arg3 = forward(c.arg3, dest, value);
+        if (res.arg1 == c.arg1 && res.arg2 == c.arg2 && res.arg3 == c.arg3) {
+          return null;
+        }
+        return List.of(move, res);
+      }, new PeepholeRule.Pattern(Opcode.MLZ, 0, ALWAYS, null, null, 0, null),
+          PeepholeRule.ANY) };
+
+  final PeepholeRule[] rules;
+  // how many times each rule applied, by name
+  final Map<String, Integer> applied = new LinkedHashMap<String, Integer>();
+
+  PeepholeOptimizer(PeepholeRule... rules) {
+    this.rules = rules;
+    for (PeepholeRule rule : rules) {
+      applied.put(rule.name, 0);
+    }
+  }
+
+  /**
+   * @return A nop carrying the labels of a command
+   */
+  static Command nop(Command c) {
+    Command res = new Command(Opcode.MLZ, new Arg(0), new Arg(0), new Arg(0));
+    res.tags.addAll(c.tags);
+    res.source = c.source;
+    return res;
+  }
+
+  /**
+   * @param a
+   *          An argument
+   * @param address
+   *          Address that holds a value
+   * @param value
+   *          Argument the value was moved from, a constant or an address
+   * @return An argument reading the value directly where a reads it from the
+   *         address, or a itself
+   */
+  static Arg forward(Arg a, int address, Arg value) {
+    if (a.mode == 0 || a.val != address || !a.resolved
+        || a.mode + value.mode - 1 > 3) {
+      return a;
+    }
+    Arg res = value.dup();
+    res.mode = a.mode + value.mode - 1;
+    return res;
+  }
+
+  /**
+   * Applies the rules until none of them does
+   *
+   * @param graph
+   *          Program to rewrite, whose edges are brought up to date
+   * @return Whether anything was rewritten
+   */
+  boolean run(ControlFlowGraph graph) {
+    boolean res = false;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock b : graph.blocks) {
+        for (int i = 0; i < b.code.size(); i++) {
+          for (PeepholeRule rule : rules) {
+            if (rewrite(b, i, rule, graph.fixedLayout)) {
+              applied.merge(rule.name, 1, Integer::sum);
+              changed = true;
+            }
+          }
+        }
+      }
+      res |= changed;
+    }
+    if (res) {
+      graph.update();
+    }
+    return res;
+  }
+
+  /**
+   * Applies one rule at one place, if it can be without changing the
+   * structure of the block
+   *
+   * @return Whether the rule applied
+   */
+  private boolean rewrite(BasicBlock b, int at, PeepholeRule rule,
+      boolean fixedLayout) {
+    List<Command> replacement = rule.apply(b.code, at);
+    if (replacement == null) {
+      return false;
+    }
+    int width = rule.window.length;
+    // the jump and its delay slot, if any
+    int jump = b.jump() == null ? b.code.size() : b.code.size() - 2;
+    if ((fixedLayout || at + width > jump) && replacement.size() != width) {
+      return false;
+    }
+    for (int i = 0; i < replacement.size(); i++) {
+      if (replacement.get(i).isJump() && at + i != jump) {
+        return false;
+      }
+    }
+    List<Command> window = b.code.subList(at, at + width);
+    window.clear();
+    window.addAll(replacement);
+    return true;
+  }
+}
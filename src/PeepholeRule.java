@@ -0,0 +1,88 @@
+import java.util.List;
+
+/**
+ * A rewrite of a few adjacent commands in one basic block. Each command of
+ * the window is matched against a pattern, given in the form of
+ * Command.isEquivalent, and a matching window is handed to the rule's
+ * rewrite, which returns the commands to put in its place, or null if the
+ * rule does not apply after all.
+ *
+ * Rewrites build new commands and arguments rather than changing the ones
+ * they are given.
+ */
+public class PeepholeRule {
+
+  /**
+   * Matches one command: its opcode and the mode and value of each argument,
+   * where null matches anything
+   */
+  static class Pattern {
+    final Opcode opcode;
+    final Integer a1m, a1v, a2m, a2v, a3m, a3v;
+
+    Pattern(Opcode opcode, Integer a1m, Integer a1v, Integer a2m, Integer a2v,
+        Integer a3m, Integer a3v) {
+      this.opcode = opcode;
+      this.a1m = a1m;
+      this.a1v = a1v;
+      this.a2m = a2m;
+      this.a2v = a2v;
+      this.a3m = a3m;
+      this.a3v = a3v;
+    }
+
+    boolean matches(Command c) {
+      return c.isEquivalent(opcode, a1m, a1v, a2m, a2v, a3m, a3v);
+    }
+  }
+
+  interface Rewrite {
+    /**
+     * @param window
+     *          The matching commands, which must not be changed
+     * @return Their replacement, or null to leave them
+     */
+    List<Command> rewrite(List<Command> window);
+  }
+
+  static final Pattern ANY = new Pattern(null, null, null, null, null, null,
+      null);
+
+  final String name;
+  final Pattern[] window;
+  final Rewrite rewrite;
+
+  PeepholeRule(String name, Rewrite rewrite, Pattern... window) {
+    this.name = name;
+    this.rewrite = rewrite;
+    this.window = window;
+  }
+
+  /**
+   * @param code
+   *          Commands of a block
+   * @param at
+   *          Index of the first command of the window
+   * @return The replacement of the window, or null if the rule does not apply
+   */
+  List<Command> apply(List<Command> code, int at) {
+    if (at + window.length > code.size()) {
+      return null;
+    }
+    for (int i = 0; i < window.length; i++) {
+      if (!window[i].matches(code.get(at + i))) {
+        return null;
+      }
+    }
+    return rewrite.rewrite(code.subList(at, at + window.length));
+  }
+
+  /**
+   * @return A copy of a command, with its labels, to be changed by a rewrite
+   */
+  static Command copy(Command c) {
+    Command res = c.dupWithoutTags();
+    res.tags.addAll(c.tags);
+    return res;
+  }
+}
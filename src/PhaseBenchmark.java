@@ -0,0 +1,226 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Times each phase of compilation separately, so that a change to one phase
+ * can be measured against a baseline. Each source is compiled over and over:
+ * first for a warmup period, so that the JIT has settled, and then for a
+ * number of measured rounds. For every phase the mean time per compile, its
+ * spread between rounds, and the bytes allocated per compile are reported,
+ * along with the collections the garbage collector made while measuring.
+ *
+ * Phases are timed by the same methods CompilationContext.compile() calls, in
+ * the same order, and diagnostics are discarded.
+ */
+public class PhaseBenchmark {
+
+  static final String[] PHASES = { "lex", "compile", "link", "flow",
+      "optimize", "layout", "simplify", "adjustJumps", "pack" };
+  static final long WARMUP_NANOS = 2000000000L;
+  static final long ROUND_NANOS = 1000000000L;
+  static final int ROUNDS = 5;
+
+  private static final PrintStream discard = new PrintStream(
+      OutputStream.nullOutputStream());
+
+  private final com.sun.management.ThreadMXBean threads;
+  // totals for the current round
+  final long[] nanos = new long[PHASES.length];
+  final long[] bytes = new long[PHASES.length];
+  long compiles = 0;
+  int instructions = 0;
+  // time and allocation when the current phase began
+  private long phaseStart;
+  private long phaseBytes;
+
+  PhaseBenchmark() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean)
+            .isThreadAllocatedMemorySupported()) {
+      threads = (com.sun.management.ThreadMXBean) bean;
+    } else {
+      threads = null;
+    }
+  }
+
+  /**
+   * Compiles a source once, adding the cost of each phase to the totals
+   *
+   * @param source
+   *          Source text, which is left unchanged
+   */
+  void compileOnce(char[] source) {
+    char[] text = source.clone();
+    phaseStart = System.nanoTime();
+    phaseBytes = allocated();
+    TokenStream tokens = Lexer.lex(text, discard);
+    lap(0);
+    CompilationContext context = new CompilationContext(discard);
+    context.tokens = tokens;
+    context.compile();
+    lap(1);
+    context.link();
+    lap(2);
+    context.flow();
+    lap(3);
+    context.optimize();
+    lap(4);
+    context.layout();
+    lap(5);
+    context.simplify();
+    lap(6);
+    context.adjustJumps();
+    lap(7);
+    Program program = context.pack();
+    lap(8);
+    instructions = program.ROM.size();
+    compiles++;
+  }
+
+  private void lap(int phase) {
+    long now = System.nanoTime();
+    long allocated = allocated();
+    nanos[phase] += now - phaseStart;
+    bytes[phase] += allocated - phaseBytes;
+    // the time and allocation of the probes themselves are left out
+    phaseStart = System.nanoTime();
+    phaseBytes = allocated();
+  }
+
+  private long allocated() {
+    return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+  }
+
+  private void reset() {
+    for (int i = 0; i < PHASES.length; i++) {
+      nanos[i] = 0;
+      bytes[i] = 0;
+    }
+    compiles = 0;
+  }
+
+  /**
+   * Benchmarks one source and prints a table of its phases
+   *
+   * @param name
+   *          Name to print
+   * @param source
+   *          Source text
+   * @param out
+   *          Destination of the table
+   */
+  void run(String name, char[] source, PrintStream out) {
+    reset();
+    long end = System.nanoTime() + WARMUP_NANOS;
+    while (System.nanoTime() < end) {
+      compileOnce(source);
+    }
+    // nanoseconds and bytes per compile, by round and phase
+    double[][] time = new double[ROUNDS][PHASES.length + 1];
+    double[][] alloc = new double[ROUNDS][PHASES.length + 1];
+    long collections = -gcCount();
+    long gcMillis = -gcMillis();
+    for (int r = 0; r < ROUNDS; r++) {
+      reset();
+      end = System.nanoTime() + ROUND_NANOS;
+      while (System.nanoTime() < end) {
+        compileOnce(source);
+      }
+      for (int i = 0; i < PHASES.length; i++) {
+        time[r][i] = (double) nanos[i] / compiles;
+        alloc[r][i] = (double) bytes[i] / compiles;
+        time[r][PHASES.length] += time[r][i];
+        alloc[r][PHASES.length] += alloc[r][i];
+      }
+    }
+    collections += gcCount();
+    gcMillis += gcMillis();
+    out.printf("%s: %d chars, %d instructions, %d rounds of %d ms after"
+        + " %d ms of warmup%n", name, source.length, instructions, ROUNDS,
+        ROUND_NANOS / 1000000, WARMUP_NANOS / 1000000);
+    out.printf("%-12s %12s %10s %12s %12s %10s%n", "phase", "us/op", "+-",
+        "ops/s", "B/op", "MB/s");
+    for (int i = 0; i <= PHASES.length; i++) {
+      double meanTime = 0;
+      double meanAlloc = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        meanTime += time[r][i] / ROUNDS;
+        meanAlloc += alloc[r][i] / ROUNDS;
+      }
+      double variance = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        variance += (time[r][i] - meanTime) * (time[r][i] - meanTime)
+            / Math.max(ROUNDS - 1, 1);
+      }
+      out.printf("%-12s %12.3f %10.3f %12.1f %12s %10s%n",
+          i < PHASES.length ? PHASES[i] : "total", meanTime / 1e3,
+          Math.sqrt(variance) / 1e3, 1e9 / meanTime,
+          threads == null ? "-" : String.format("%.0f", meanAlloc),
+          threads == null ? "-"
+              : String.format("%.1f", meanAlloc / meanTime * 1e3));
+    }
+    out.printf("gc: %d collections, %d ms while measuring%n%n", collections,
+        gcMillis);
+  }
+
+  private static long gcCount() {
+    long res = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      res += Math.max(gc.getCollectionCount(), 0);
+    }
+    return res;
+  }
+
+  private static long gcMillis() {
+    long res = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      res += Math.max(gc.getCollectionTime(), 0);
+    }
+    return res;
+  }
+
+  /**
+   * Benchmarks each source in turn
+   *
+   * @param files
+   *          Cogol sources, or line counts of programs to generate, or none
+   *          for the bundled samples
+   * @throws IOException
+   */
+  static void run(List<String> files) throws IOException {
+    if (files.isEmpty()) {
+      files = List.of(SAMPLES);
+    }
+    PhaseBenchmark bench = new PhaseBenchmark();
+    if (bench.threads == null) {
+      System.out.println("allocation is not measured on this JVM");
+    }
+    for (String file : files) {
+      char[] source;
+      if (file.matches("[0-9]+")) {
+        int lines = Integer.parseInt(file);
+        source = ProgramGenerator.ofSize(lines, ProgramGenerator.DEFAULT_SEED)
+            .generate(lines).toCharArray();
+        file = "generated " + lines + " lines";
+      } else {
+        try (Reader in = new FileReader(file)) {
+          source = Lexer.readAll(in);
+        }
+      }
+      bench.run(file, source, System.out);
+    }
+  }
+
+  static final String[] SAMPLES = { "tetris.cgl", "source.cgl", "primes.cgl",
+      "fib.cgl" };
+}
@@ -0,0 +1,378 @@
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes the cycles of a simulated run to the subroutines, loops and
+ * other blocks of the program. The compiler labels the first and last command
+ * of every block, such as beginSub1_random and endSub1_random, so the blocks
+ * can be found in any listing without a symbol file. Calls are followed as
+ * they happen: a jump whose delay slot carries a call label, such as
+ * call25_newpreview, enters the subroutine it lands in, and a jump to an
+ * address read from RAM returns from it.
+ *
+ * Cycles are reported flat, by block, and as a call tree, and can be written
+ * as collapsed stacks for flame graph tools, one line per stack:
+ * main;newpreview;DoWhile16_prng 1234
+ *
+ * Given the program's source map, cycles are also reported by source line,
+ * and each collapsed stack ends with the line it was spent on.
+ */
+public class Profiler {
+
+  static final String MAIN = "main";
+
+  /**
+   * A block of the program, bounded by its begin and end labels
+   */
+  static class Region {
+    final String name;
+    final int begin;
+    final int end;
+    final boolean isSub;
+    Region parent;
+
+    Region(String label, int begin, int end) {
+      this.isSub = label.startsWith("Sub");
+      // a subroutine is known by its own name, which follows its ID
+      this.name = isSub ? label.substring(label.indexOf('_') + 1) : label;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    /**
+     * @return The names of this block and those enclosing it, outermost
+     *         first, up to and including its subroutine
+     */
+    List<String> chain() {
+      ArrayList<String> res = new ArrayList<String>();
+      for (Region r = this; r != null; r = r.parent) {
+        res.add(0, r.name);
+        if (r.isSub) {
+          return res;
+        }
+      }
+      res.add(0, MAIN);
+      return res;
+    }
+  }
+
+  /**
+   * A subroutine as reached by one path through the call tree
+   */
+  static class Frame {
+    final String name;
+    final Frame parent;
+    final long[] counts;
+    final Map<Region, Frame> children = new LinkedHashMap<Region, Frame>();
+    long calls = 0;
+
+    Frame(String name, Frame parent, int size) {
+      this.name = name;
+      this.parent = parent;
+      this.counts = new long[size];
+    }
+
+    long self() {
+      long res = 0;
+      for (long count : counts) {
+        res += count;
+      }
+      return res;
+    }
+
+    long total() {
+      long res = self();
+      for (Frame child : children.values()) {
+        res += child.total();
+      }
+      return res;
+    }
+
+    String stack() {
+      return parent == null ? name : parent.stack() + ";" + name;
+    }
+  }
+
+  final PackedROM ROM;
+  // statement each command came from, or null if there is no source map
+  final SourcePosition[] sources;
+  final List<Region> regions = new ArrayList<Region>();
+  // innermost block around each command, or null in the main program
+  final Region[] region;
+  // subroutine whose body starts at each address
+  final Region[] entry;
+  // whether the delay slot after each command is a call's return point
+  final boolean[] callSite;
+  final Frame root;
+  Frame frame;
+  long cycles = 0;
+  // change of frame made once the delay slot of a call or return has run
+  private boolean inDelaySlot = false;
+  private Region pendingCall = null;
+  private boolean pendingReturn = false;
+
+  Profiler(PackedROM ROM, SourcePosition[] sources) {
+    this.ROM = ROM;
+    this.sources = sources;
+    int n = ROM.size();
+    region = new Region[n];
+    entry = new Region[n];
+    callSite = new boolean[n];
+    root = new Frame(MAIN, null, n);
+    frame = root;
+    Map<String, Integer> begins = new HashMap<String, Integer>();
+    Map<String, Integer> ends = new HashMap<String, Integer>();
+    for (int i = 0; i < n; i++) {
+      for (Symbol tag : ROM.tags(i)) {
+        String name = tag.name;
+        if (name.startsWith("begin") && name.length() > 5) {
+          begins.put(name.substring(5), i);
+        } else if (name.startsWith("end") && name.length() > 3
+            && Character.isUpperCase(name.charAt(3))) {
+          ends.put(name.substring(3), i);
+        } else if (name.matches("call\\d+_.*") && i > 0) {
+          callSite[i - 1] = true;
+        }
+      }
+    }
+    for (Map.Entry<String, Integer> begin : begins.entrySet()) {
+      Integer end = ends.get(begin.getKey());
+      if (end != null && end >= begin.getValue()) {
+        regions.add(new Region(begin.getKey(), begin.getValue(), end));
+      }
+    }
+    // outer blocks first, so that inner ones overwrite them
+    Collections.sort(regions, new Comparator<Region>() {
+      public int compare(Region a, Region b) {
+        return a.begin != b.begin ? Integer.compare(a.begin, b.begin)
+            : Integer.compare(b.end, a.end);
+      }
+    });
+    Deque<Region> open = new ArrayDeque<Region>();
+    for (Region r : regions) {
+      while (!open.isEmpty() && open.peek().end < r.begin) {
+        open.pop();
+      }
+      r.parent = open.peek();
+      open.push(r);
+      for (int i = r.begin; i <= r.end; i++) {
+        region[i] = r;
+      }
+      if (r.isSub && r.begin + 1 < n) {
+        entry[r.begin + 1] = r;
+      }
+    }
+  }
+
+  /**
+   * Records one cycle
+   *
+   * @param index
+   *          The command run
+   * @param landing
+   *          Where execution continues after the delay slot if the command
+   *          jumped, or -1
+   */
+  void executed(int index, int landing) {
+    frame.counts[index]++;
+    cycles++;
+    if (inDelaySlot) {
+      inDelaySlot = false;
+      if (pendingCall != null) {
+        Frame child = frame.children.get(pendingCall);
+        if (child == null) {
+          child = new Frame(pendingCall.name, frame, region.length);
+          frame.children.put(pendingCall, child);
+        }
+        child.calls++;
+        frame = child;
+      } else if (pendingReturn && frame.parent != null) {
+        frame = frame.parent;
+      }
+      pendingCall = null;
+      pendingReturn = false;
+    }
+    if (landing >= 0) {
+      inDelaySlot = true;
+      if (callSite[index] && landing < entry.length
+          && entry[landing] != null) {
+        pendingCall = entry[landing];
+      } else if (PackedROM.mode(ROM.code[index], 2) > 0) {
+        // only returns jump to an address that is not a constant
+        pendingReturn = true;
+      }
+    }
+  }
+
+  /**
+   * @return Cycles spent at each command, over all frames
+   */
+  long[] totals() {
+    long[] res = new long[region.length];
+    add(root, res);
+    return res;
+  }
+
+  private void add(Frame f, long[] res) {
+    for (int i = 0; i < res.length; i++) {
+      res[i] += f.counts[i];
+    }
+    for (Frame child : f.children.values()) {
+      add(child, res);
+    }
+  }
+
+  /**
+   * Prints the cycles spent in each block itself, and in total including the
+   * blocks inside it other than subroutines, busiest first
+   */
+  void writeFlat(PrintStream out) {
+    long[] counts = totals();
+    Map<Region, long[]> stats = new HashMap<Region, long[]>();
+    long[] main = new long[2];
+    for (Region r : regions) {
+      stats.put(r, new long[2]);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      (region[i] == null ? main : stats.get(region[i]))[0] += counts[i];
+    }
+    main[1] = main[0];
+    // inner blocks come later, so add them to their parents in reverse
+    for (int i = regions.size() - 1; i >= 0; i--) {
+      Region r = regions.get(i);
+      long[] s = stats.get(r);
+      s[1] += s[0];
+      if (!r.isSub) {
+        (r.parent == null ? main : stats.get(r.parent))[1] += s[1];
+      }
+    }
+    List<Map.Entry<String, long[]>> rows =
+        new ArrayList<Map.Entry<String, long[]>>();
+    rows.add(new HashMap.SimpleEntry<String, long[]>(MAIN, main));
+    for (Region r : regions) {
+      rows.add(new HashMap.SimpleEntry<String, long[]>(
+          String.join("/", r.chain()), stats.get(r)));
+    }
+    Collections.sort(rows, new Comparator<Map.Entry<String, long[]>>() {
+      public int compare(Map.Entry<String, long[]> a,
+          Map.Entry<String, long[]> b) {
+        return Long.compare(b.getValue()[0], a.getValue()[0]);
+      }
+    });
+    out.println("flat profile, " + cycles + " cycles:");
+    out.printf("%12s %6s %12s %6s  %s%n", "self", "%", "total", "%", "block");
+    for (Map.Entry<String, long[]> row : rows) {
+      long[] s = row.getValue();
+      if (s[1] == 0) {
+        continue;
+      }
+      out.printf("%12d %6s %12d %6s  %s%n", s[0], percent(s[0]), s[1],
+          percent(s[1]), row.getKey());
+    }
+  }
+
+  /**
+   * Prints the cycles spent on each source line, busiest first
+   */
+  void writeLines(PrintStream out) {
+    long[] counts = totals();
+    Map<Integer, long[]> lines = new HashMap<Integer, long[]>();
+    Map<Integer, SourcePosition> first = new HashMap<Integer, SourcePosition>();
+    for (int i = 0; i < counts.length; i++) {
+      if (sources[i] == null || counts[i] == 0) {
+        continue;
+      }
+      int line = sources[i].line;
+      if (!lines.containsKey(line)) {
+        lines.put(line, new long[1]);
+        first.put(line, sources[i]);
+      }
+      lines.get(line)[0] += counts[i];
+    }
+    List<Integer> order = new ArrayList<Integer>(lines.keySet());
+    Collections.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(lines.get(b)[0], lines.get(a)[0]);
+      }
+    });
+    out.println("source lines, " + cycles + " cycles:");
+    out.printf("%12s %6s %6s  %s%n", "cycles", "%", "line", "block");
+    for (int line : order) {
+      SourcePosition p = first.get(line);
+      long count = lines.get(line)[0];
+      out.printf("%12d %6s %6d  %s%n", count, percent(count), line,
+          p.sub == null ? (p.loop == null ? MAIN : MAIN + "/" + p.loop)
+              : p.loop == null || p.loop.endsWith("_" + p.sub) ? p.sub
+                  : p.sub + "/" + p.loop);
+    }
+  }
+
+  /**
+   * Prints each path through the call tree with its cycles and calls
+   */
+  void writeTree(PrintStream out) {
+    out.println("call tree, " + cycles + " cycles:");
+    out.printf("%12s %6s %12s %8s  %s%n", "total", "%", "self", "calls",
+        "subroutine");
+    writeTree(out, root, "");
+  }
+
+  private void writeTree(PrintStream out, Frame f, String indent) {
+    long total = f.total();
+    out.printf("%12d %6s %12d %8s  %s%n", total, percent(total), f.self(),
+        f.parent == null ? "" : Long.toString(f.calls), indent + f.name);
+    for (Frame child : f.children.values()) {
+      writeTree(out, child, indent + "  ");
+    }
+  }
+
+  /**
+   * Writes collapsed stacks, one line per stack: the subroutines called,
+   * then the blocks inside the last of them, then the source line if known,
+   * then the cycles spent there
+   */
+  void writeCollapsed(PrintStream out) {
+    writeCollapsed(out, root);
+  }
+
+  private void writeCollapsed(PrintStream out, Frame f) {
+    Map<String, Long> stacks = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < f.counts.length; i++) {
+      if (f.counts[i] == 0) {
+        continue;
+      }
+      String stack = f.stack();
+      if (region[i] != null) {
+        List<String> chain = region[i].chain();
+        // the subroutine itself, or main, is already the last frame
+        chain = chain.subList(1, chain.size());
+        if (!chain.isEmpty()) {
+          stack += ";" + String.join(";", chain);
+        }
+      }
+      if (sources != null && sources[i] != null) {
+        stack += ";line " + sources[i].line;
+      }
+      Long sum = stacks.get(stack);
+      stacks.put(stack, (sum == null ? 0 : sum) + f.counts[i]);
+    }
+    for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+      out.println(stack.getKey() + " " + stack.getValue());
+    }
+    for (Frame child : f.children.values()) {
+      writeCollapsed(out, child);
+    }
+  }
+
+  private String percent(long count) {
+    return cycles == 0 ? "" : String.format("%.1f%%", 100.0 * count / cycles);
+  }
+}
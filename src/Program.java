@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The result of compiling one Cogol source: the final ROM, the RAM maps of
+ * the globals and of each subroutine, and the source position of each
+ * command.
+ */
+public class Program {
+
+  final PackedROM ROM;
+  final ArrayList<String> RAMmap;
+  final Map<String, Subroutine> subroutine;
+  final SourcePosition[] sources;
+
+  Program(PackedROM ROM, ArrayList<String> RAMmap,
+      Map<String, Subroutine> subroutine, SourcePosition[] sources) {
+    this.ROM = ROM;
+    this.RAMmap = RAMmap;
+    this.subroutine = subroutine;
+    this.sources = sources;
+  }
+
+  /**
+   * @param listing
+   *          Name of a QFTASM file
+   * @return Name of the source map written beside it
+   */
+  static String sourceMapFile(String listing) {
+    return listing + ".map";
+  }
+
+  /**
+   * Writes the ROM in QFTASM format, one numbered command per line. Each line
+   * is built in a reused buffer and appended to the writer, which is expected
+   * to do its own buffering.
+   * 
+   * @param out
+   *          Destination of the listing
+   * @throws IOException
+   */
+  void write(Writer out) throws IOException {
+    String newline = System.lineSeparator();
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < ROM.size(); i++) {
+      if (i > 0) {
+        out.write(newline);
+      }
+      line.setLength(0);
+      line.append(i).append(". ");
+      ROM.appendTo(line, i);
+      out.append(line);
+    }
+  }
+
+  /**
+   * Writes the source map, which gives the statement each command came from
+   * 
+   * @param out
+   *          Destination of the map
+   * @throws IOException
+   */
+  void writeSourceMap(Writer out) throws IOException {
+    SourcePosition.write(sources, out);
+  }
+
+  /**
+   * Writes the RAM map of the globals, followed by the map of each
+   * subroutine's local variables
+   * 
+   * @param out
+   *          Destination of the maps
+   */
+  void writeMaps(PrintWriter out) {
+    out.println();
+    out.println("RAM map:");
+    for (int i = 0; i < RAMmap.size(); i++) {
+      out.println(i + ": " + RAMmap.get(i));
+    }
+    for (String sub : subroutine.keySet()) {
+      Subroutine s = subroutine.get(sub);
+      out.println();
+      out.println(sub + " map:");
+      for (int i = 0; i < s.RAMmap.size(); i++) {
+        out.println(i + ": " + s.RAMmap.get(i));
+      }
+    }
+  }
+}
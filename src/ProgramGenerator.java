@@ -0,0 +1,296 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes random but valid Cogol programs of any size, for measuring how the
+ * compiler scales on programs far larger than the samples. A program declares
+ * its globals, words and arrays with initializers, then has a main body, and
+ * then declares its subroutines, each with default arguments. Bodies mix
+ * arithmetic, array accesses, nested if, while and do-while blocks, and calls
+ * that read back a local variable of the subroutine called.
+ *
+ * Every generated program halts. Each loop counts its own counter up to a
+ * small bound, and a subroutine only ever calls the one declared after it,
+ * so calls form chains and never recurse. Arrays are only written at
+ * constant indices within their bounds, so no statement can overwrite the
+ * program counter or the call stack. The same seed and size always give the
+ * same program. Beyond about 30000 lines the ROM no longer fits in the 16-bit
+ * addresses of the machine, so larger programs still compile but cannot be
+ * run.
+ */
+public class ProgramGenerator {
+
+  static final String[] OPERATORS = { "+", "-", "&", "|", "^", "&!", "<<",
+      ">>", ">>>" };
+  // what an if statement can test
+  static final String[] COMPARISONS = { "<", "<=", "==", "!=", ">", ">=" };
+  static final long DEFAULT_SEED = 1;
+
+  final Random random;
+  // shape of the program
+  int globals;
+  int arrays;
+  int subs;
+  int depth = 3;
+  int loopBound = 2;
+
+  private final StringBuilder out = new StringBuilder();
+  private int lines = 0;
+  // what the statement being generated can use
+  private List<String> words;
+  private List<String> counters;
+  private List<String> arrayNames;
+  private List<Integer> arraySizes;
+
+  ProgramGenerator(long seed) {
+    random = new Random(seed);
+  }
+
+  /**
+   * @param lines
+   *          About how many lines the program should have
+   * @param seed
+   *          Seed for the choices made
+   * @return A generator whose globals and subroutines grow with the size,
+   *         within what fits in RAM
+   */
+  static ProgramGenerator ofSize(int lines, long seed) {
+    ProgramGenerator res = new ProgramGenerator(seed);
+    res.globals = Math.max(4, Math.min(lines / 25, 8000));
+    res.arrays = Math.max(1, Math.min(lines / 100, 2000));
+    res.subs = Math.max(1, Math.min(lines / 40, 6000));
+    return res;
+  }
+
+  /**
+   * @param size
+   *          About how many lines to write
+   * @return The program
+   */
+  String generate(int size) {
+    out.setLength(0);
+    lines = 0;
+    line(0, "# generated program, about " + size + " lines");
+    List<String> globalWords = new ArrayList<String>();
+    List<String> globalArrays = new ArrayList<String>();
+    List<Integer> globalSizes = new ArrayList<Integer>();
+    for (int i = 0; i < globals; i++) {
+      String name = "g" + i;
+      globalWords.add(name);
+      line(0, random.nextInt(3) == 0 ? "my " + name + ";"
+          : "my " + name + " = " + constant() + ";");
+    }
+    for (int i = 0; i < arrays; i++) {
+      String name = "a" + i;
+      int length = 1 + random.nextInt(6);
+      globalArrays.add(name);
+      globalSizes.add(length);
+      line(0, "my " + name + "[" + length + "]" + initializer(length) + ";");
+    }
+    List<String> mainCounters = new ArrayList<String>();
+    for (int i = 0; i < depth; i++) {
+      mainCounters.add("m" + i);
+      line(0, "my m" + i + ";");
+    }
+    // the rest is shared between the main body and the subroutines
+    int budget = Math.max(size - lines, 1) / (subs + 1);
+
+    words = globalWords;
+    counters = mainCounters;
+    arrayNames = globalArrays;
+    arraySizes = globalSizes;
+    body(0, lines + budget, 0);
+    for (int i = 0; i < Math.max(1, budget / 20); i++) {
+      call(0, random.nextInt(subs), globalWords);
+    }
+
+    for (int s = 0; s < subs; s++) {
+      int params = 1 + random.nextInt(3);
+      List<String> locals = new ArrayList<String>();
+      StringBuilder signature = new StringBuilder("sub f" + s + "(");
+      for (int p = 0; p < params; p++) {
+        locals.add("p" + p);
+        signature.append("p" + p);
+        if (random.nextBoolean()) {
+          signature.append(" = " + constant());
+        }
+        signature.append(", ");
+      }
+      locals.add("r");
+      signature.append("r, t[2]" + initializer(2));
+      List<String> subCounters = new ArrayList<String>();
+      for (int i = 0; i < depth; i++) {
+        subCounters.add("d" + i);
+        signature.append(", d" + i);
+      }
+      line(0, signature + ") {");
+      words = new ArrayList<String>(locals);
+      words.addAll(globalWords);
+      counters = subCounters;
+      arrayNames = new ArrayList<String>(globalArrays);
+      arrayNames.add("t");
+      arraySizes = new ArrayList<Integer>(globalSizes);
+      arraySizes.add(2);
+      body(1, lines + budget, 0);
+      if (s + 1 < subs) {
+        call(1, s + 1, words);
+      }
+      line(0, "}");
+    }
+    return out.toString();
+  }
+
+  /**
+   * Writes statements until a line is reached
+   */
+  private void body(int indent, int until, int level) {
+    do {
+      statement(indent, until, level);
+    } while (lines < until);
+  }
+
+  private void statement(int indent, int until, int level) {
+    int kind = random.nextInt(level < depth ? 12 : 8);
+    String dest = dest();
+    switch (kind) {
+    case 0:
+    case 1:
+      line(indent, dest + " = " + operand() + " "
+          + OPERATORS[random.nextInt(OPERATORS.length)] + " " + operand()
+          + ";");
+      break;
+    case 2:
+      line(indent, dest + " " + OPERATORS[random.nextInt(OPERATORS.length)]
+          + "= " + operand() + ";");
+      break;
+    case 3:
+      line(indent, dest + (random.nextBoolean() ? "++;" : "--;"));
+      break;
+    case 4: {
+      int a = random.nextInt(arrayNames.size());
+      line(indent, arrayNames.get(a) + "[" + random.nextInt(arraySizes.get(a))
+          + "] = " + operand() + ";");
+      break;
+    }
+    case 5:
+      line(indent, dest + " = " + arrayRead() + ";");
+      break;
+    case 6:
+      line(indent, "display = " + operand() + ";");
+      break;
+    case 7:
+      line(indent, dest + " = " + operand() + ";");
+      break;
+    case 8:
+    case 9: {
+      int share = lines + 1 + random.nextInt(Math.max(1, until - lines));
+      line(indent, "if (" + condition() + ") {");
+      body(indent + 1, share, level + 1);
+      if (random.nextBoolean()) {
+        line(indent, "} else {");
+        body(indent + 1, share + 1 + random.nextInt(4), level + 1);
+      }
+      line(indent, "}");
+      break;
+    }
+    case 10: {
+      String counter = counters.get(level);
+      int share = lines + 1 + random.nextInt(Math.max(1, until - lines));
+      line(indent, counter + " = 0;");
+      line(indent, "while (" + counter + " < " + loopBound + ") {");
+      body(indent + 1, share, level + 1);
+      line(indent + 1, counter + "++;");
+      line(indent, "}");
+      break;
+    }
+    default: {
+      String counter = counters.get(level);
+      int share = lines + 1 + random.nextInt(Math.max(1, until - lines));
+      line(indent, counter + " = 0;");
+      line(indent, "do {");
+      body(indent + 1, share, level + 1);
+      line(indent + 1, counter + "++;");
+      line(indent, "} while (" + counter + " < " + loopBound + ");");
+      break;
+    }
+    }
+  }
+
+  /**
+   * Writes a call of subroutine s, passing some of the given words
+   */
+  private void call(int indent, int s, List<String> from) {
+    StringBuilder args = new StringBuilder();
+    for (int i = random.nextInt(2); i > 0; i--) {
+      args.append(args.length() > 0 ? ", " : "")
+          .append(from.get(random.nextInt(from.size())));
+    }
+    String dest = from.get(random.nextInt(from.size()));
+    switch (random.nextInt(3)) {
+    case 0:
+      line(indent, "call f" + s + "(" + args + ");");
+      break;
+    case 1:
+      line(indent, "call " + dest + " = f" + s + "(" + args + ").r;");
+      break;
+    default:
+      line(indent, "call " + dest + " += f" + s + "(" + args + ").p0;");
+      break;
+    }
+  }
+
+  private String dest() {
+    return words.get(random.nextInt(words.size()));
+  }
+
+  private String operand() {
+    switch (random.nextInt(4)) {
+    case 0:
+      return Integer.toString(constant());
+    case 1:
+      return counters.get(random.nextInt(counters.size()));
+    default:
+      return words.get(random.nextInt(words.size()));
+    }
+  }
+
+  private String arrayRead() {
+    int a = random.nextInt(arrayNames.size());
+    String index = random.nextBoolean()
+        ? Integer.toString(random.nextInt(arraySizes.get(a)))
+        : words.get(random.nextInt(words.size()));
+    return arrayNames.get(a) + "[" + index + "]";
+  }
+
+  private String condition() {
+    String left = words.get(random.nextInt(words.size()));
+    String right = random.nextBoolean() ? Integer.toString(constant())
+        : words.get(random.nextInt(words.size()));
+    return left + " " + COMPARISONS[random.nextInt(COMPARISONS.length)] + " "
+        + right;
+  }
+
+  private int constant() {
+    return random.nextInt(100);
+  }
+
+  private String initializer(int length) {
+    if (random.nextBoolean()) {
+      return "";
+    }
+    StringBuilder res = new StringBuilder(" = {");
+    for (int i = 1 + random.nextInt(length); i > 0; i--) {
+      res.append(constant()).append(i > 1 ? "," : "}");
+    }
+    return res.toString();
+  }
+
+  private void line(int indent, String text) {
+    for (int i = 0; i < indent; i++) {
+      out.append("  ");
+    }
+    out.append(text).append('\n');
+    lines++;
+  }
+}
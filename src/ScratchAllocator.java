@@ -0,0 +1,517 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Reassigns the scratch addresses of the whole program once it has been
+ * generated. The statements take scratch addresses from a pool that is
+ * emptied after each of them, so a value cannot outlive its statement and
+ * the same few addresses hold many unrelated values. This pass instead
+ * follows each value from the writes that make it to the reads that use it,
+ * forming a web, and gives every web an address that no web it interferes
+ * with has, using as few addresses as it can.
+ *
+ * Before the addresses are given out, a command in a block that computes
+ * into a scratch address what an earlier command of the block computed into
+ * another is removed, and its readers read the earlier web, which may keep a
+ * value in a scratch address from one statement to the next. Copies from
+ * one scratch address to another whose webs do not interfere are removed by
+ * giving both webs the same address.
+ *
+ * Only the scratch addresses that already exist are used, as the rest of RAM
+ * has been laid out by then. If the webs cannot be fitted into them, the
+ * program is left as it was.
+ */
+public class ScratchAllocator {
+
+  final ScratchLiveness liveness;
+  // computations replaced by an earlier web
+  int reused = 0;
+  // copies between scratch addresses removed
+  int coalesced = 0;
+
+  // each read and write of a scratch address is a node, and each web a set
+  // of nodes found with a union-find
+  private int[] parent = new int[64];
+  private int nodes = 0;
+  // the nodes of each command's reads of arg1, arg2 and arg3 and of its
+  // write, or -1
+  private final IdentityHashMap<Command, int[]> occurrences =
+      new IdentityHashMap<Command, int[]>();
+  // the node each scratch address's value comes from at the start and end of
+  // each block, or -1 if it is not live there
+  private final IdentityHashMap<BasicBlock, int[]> entry =
+      new IdentityHashMap<BasicBlock, int[]>();
+  private final IdentityHashMap<BasicBlock, int[]> exit =
+      new IdentityHashMap<BasicBlock, int[]>();
+  // pairs of nodes whose webs must have different addresses
+  private final ArrayList<int[]> conflicts = new ArrayList<int[]>();
+
+  ScratchAllocator(int[] scratch) {
+    liveness = new ScratchLiveness(scratch);
+  }
+
+  /**
+   * @param graph
+   *          Program whose scratch addresses to reassign, whose edges are
+   *          brought up to date
+   * @return Whether anything was changed
+   */
+  boolean run(ControlFlowGraph graph) {
+    if (graph.fixedLayout || graph.blocks.isEmpty()) {
+      return false;
+    }
+    liveness.solve(graph);
+    findWebs(graph);
+    findConflicts(graph);
+    int[] webs = Arrays.copyOf(parent, nodes);
+    int conflictCount = conflicts.size();
+    Set<Command> removed = Collections
+        .newSetFromMap(new IdentityHashMap<Command, Boolean>());
+    findRedundant(graph, webs, removed);
+    int redundant = removed.size();
+    int[] color = color(graph, removed);
+    if (color == null) {
+      // try again with the webs as they were
+      System.arraycopy(webs, 0, parent, 0, nodes);
+      conflicts.subList(conflictCount, conflicts.size()).clear();
+      removed.clear();
+      redundant = 0;
+      color = color(graph, removed);
+    }
+    boolean res = color != null && rewrite(graph, color, removed);
+    if (res) {
+      reused += redundant;
+      coalesced += removed.size() - redundant;
+      graph.update();
+    }
+    occurrences.clear();
+    entry.clear();
+    exit.clear();
+    conflicts.clear();
+    nodes = 0;
+    return res;
+  }
+
+  private int node() {
+    if (nodes == parent.length) {
+      parent = Arrays.copyOf(parent, nodes * 2);
+    }
+    parent[nodes] = nodes;
+    return nodes++;
+  }
+
+  private int find(int n) {
+    while (parent[n] != n) {
+      parent[n] = parent[parent[n]];
+      n = parent[n];
+    }
+    return n;
+  }
+
+  private void union(int a, int b) {
+    parent[find(a)] = find(b);
+  }
+
+  /**
+   * Joins each read of a scratch address with the writes whose values it may
+   * read, which makes the webs
+   */
+  private void findWebs(ControlFlowGraph graph) {
+    int count = liveness.scratch.length;
+    for (BasicBlock b : graph.blocks) {
+      BitSet in = liveness.liveIn(b);
+      int[] current = new int[count];
+      for (int s = 0; s < count; s++) {
+        current[s] = in.get(s) ? node() : -1;
+      }
+      entry.put(b, current.clone());
+      for (Command c : b.code) {
+        int[] occurrence = { -1, -1, -1, -1 };
+        Arg[] args = { c.arg1, c.arg2, c.arg3 };
+        for (int k = 0; k < 3; k++) {
+          int s = liveness.read(args[k]);
+          if (s >= 0) {
+            occurrence[k] = node();
+            union(occurrence[k], current[s]);
+          }
+        }
+        int s = liveness.written(c);
+        if (s >= 0) {
+          occurrence[3] = node();
+          if (!c.alwaysMoves() && current[s] >= 0) {
+            // the old value stays when the write does not happen
+            union(occurrence[3], current[s]);
+          }
+          current[s] = occurrence[3];
+        }
+        occurrences.put(c, occurrence);
+      }
+      exit.put(b, current);
+    }
+    // the indirect jumps, joined for each address as the need arises
+    int[] indirect = new int[count];
+    Arrays.fill(indirect, -1);
+    for (BasicBlock b : graph.blocks) {
+      int[] start = entry.get(b);
+      for (int s = 0; s < count; s++) {
+        if (start[s] < 0) {
+          continue;
+        }
+        for (BasicBlock p : b.predecessors) {
+          if (p != graph.indirect) {
+            join(start[s], exit.get(p)[s]);
+            continue;
+          }
+          if (indirect[s] < 0) {
+            indirect[s] = node();
+            for (BasicBlock q : graph.indirect.predecessors) {
+              join(indirect[s], exit.get(q)[s]);
+            }
+          }
+          union(start[s], indirect[s]);
+        }
+      }
+    }
+  }
+
+  private void join(int a, int b) {
+    if (b >= 0) {
+      union(a, b);
+    }
+  }
+
+  /**
+   * Finds the webs that are live where another web is written, apart from
+   * the web a copy reads
+   */
+  private void findConflicts(ControlFlowGraph graph) {
+    for (BasicBlock b : graph.blocks) {
+      BitSet live = liveness.liveOut(b);
+      int[] web = exit.get(b).clone();
+      for (int i = b.code.size() - 1; i >= 0; i--) {
+        Command c = b.code.get(i);
+        int[] occurrence = occurrences.get(c);
+        int s = liveness.written(c);
+        if (s >= 0) {
+          int copied = copySource(c);
+          for (int t = live.nextSetBit(0); t >= 0;
+              t = live.nextSetBit(t + 1)) {
+            if (t != s && t != copied) {
+              conflicts.add(new int[] { occurrence[3], web[t] });
+            }
+          }
+          if (c.alwaysMoves()) {
+            live.clear(s);
+          }
+          web[s] = occurrence[3];
+        }
+        Arg[] args = { c.arg1, c.arg2, c.arg3 };
+        for (int k = 0; k < 3; k++) {
+          if (occurrence[k] >= 0) {
+            int t = liveness.read(args[k]);
+            live.set(t);
+            web[t] = occurrence[k];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return Number of the scratch address a command copies to another, or -1
+   *         if it is not such a copy
+   */
+  private int copySource(Command c) {
+    if (liveness.written(c) < 0 || !c.alwaysMoves()
+        || c.opcode != Opcode.MLZ && c.opcode != Opcode.MNZ
+        || c.arg2.mode != 1) {
+      return -1;
+    }
+    return liveness.read(c.arg2);
+  }
+
+  /**
+   * Finds the commands of each block that compute what an earlier one did,
+   * joining their webs to the earlier one's. Memory other than the scratch
+   * addresses is followed by counting writes: a direct write changes one
+   * address, and a write through a pointer may change any. A web is only
+   * made longer where fewer values than there are scratch addresses are
+   * live, so that the webs can still be given addresses.
+   *
+   * @param webs
+   *          The web of each node before any are joined
+   * @param removed
+   *          Receives the commands found
+   */
+  private void findRedundant(ControlFlowGraph graph, int[] webs,
+      Set<Command> removed) {
+    HashMap<Integer, Integer> writes = new HashMap<Integer, Integer>();
+    for (BasicBlock b : graph.blocks) {
+      for (Command c : b.code) {
+        int written = occurrences.get(c)[3];
+        if (written >= 0) {
+          writes.merge(webs[written], 1, Integer::sum);
+        }
+      }
+    }
+    for (BasicBlock b : graph.blocks) {
+      // the index of the command that computed each value
+      HashMap<String, Integer> available = new HashMap<String, Integer>();
+      HashMap<Integer, Integer> version = new HashMap<Integer, Integer>();
+      HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+      int memory = 0;
+      int pointed = 0;
+      int[] pressure = pressure(b);
+      for (int i = 0; i < b.code.size(); i++) {
+        Command c = b.code.get(i);
+        int[] occurrence = occurrences.get(c);
+        String key = null;
+        int s = liveness.written(c);
+        if (s >= 0 && c.alwaysMoves() && !c.isJump()
+            && writes.get(webs[occurrence[3]]) == 1
+            && (entry.get(b)[s] < 0
+                || webs[entry.get(b)[s]] != webs[occurrence[3]])) {
+          String arg1 = value(c.arg1, occurrence[0], webs, seen, version,
+              memory, pointed);
+          String arg2 = value(c.arg2, occurrence[1], webs, seen, version,
+              memory, pointed);
+          if (arg1 != null && arg2 != null) {
+            key = c.opcode + " " + arg1 + " " + arg2;
+          }
+        }
+        Integer earlier = key == null ? null : available.get(key);
+        if (earlier != null && fits(pressure, earlier, i)) {
+          int[] first = occurrences.get(b.code.get(earlier));
+          union(occurrence[3], first[3]);
+          // the earlier web now lasts until this command
+          for (int j = earlier; j < i; j++) {
+            pressure[j]++;
+          }
+          for (int j = earlier + 1; j < i; j++) {
+            int between = occurrences.get(b.code.get(j))[3];
+            if (between >= 0) {
+              conflicts.add(new int[] { first[3], between });
+            }
+          }
+          removed.add(c);
+        } else if (key != null) {
+          available.put(key, i);
+        }
+        if (occurrence[3] >= 0) {
+          seen.merge(webs[occurrence[3]], 1, Integer::sum);
+        } else if (!c.neverMoves()) {
+          memory++;
+          if (c.arg3.mode == 0) {
+            version.put(c.arg3.val, memory);
+          } else {
+            pointed = memory;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The number of scratch addresses live after each command of a
+   *         block, counting the one it writes
+   */
+  private int[] pressure(BasicBlock b) {
+    int[] res = new int[b.code.size()];
+    BitSet live = liveness.liveOut(b);
+    for (int i = res.length - 1; i >= 0; i--) {
+      Command c = b.code.get(i);
+      int written = liveness.written(c);
+      res[i] = live.cardinality()
+          + (written >= 0 && !live.get(written) ? 1 : 0);
+      liveness.transfer(c, live);
+    }
+    return res;
+  }
+
+  /**
+   * @return Whether one more value can be kept from command from to command
+   *         to
+   */
+  private boolean fits(int[] pressure, int from, int to) {
+    for (int j = from; j < to; j++) {
+      if (pressure[j] >= liveness.scratch.length) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return A description of the value an argument reads, equal for two
+   *         arguments of the same block exactly when they read the same
+   *         value, or null if that cannot be told
+   */
+  private static String value(Arg a, int occurrence, int[] webs,
+      HashMap<Integer, Integer> seen, HashMap<Integer, Integer> version,
+      int memory, int pointed) {
+    if (a.block != null || a.mode > 0 && Arg.isVolatile(a.val)) {
+      return null;
+    }
+    if (a.mode == 0) {
+      return Integer.toString(a.val);
+    }
+    String res;
+    if (occurrence >= 0) {
+      int web = webs[occurrence];
+      res = "w" + web + "." + seen.getOrDefault(web, 0);
+    } else {
+      res = "a" + a.val + "." + version.getOrDefault(a.val, 0) + "." + pointed;
+    }
+    return a.mode == 1 ? res : a.mode + "(" + res + ")." + memory;
+  }
+
+  /**
+   * Joins the webs of the copies that can be removed and gives each web the
+   * lowest address none of the webs it interferes with has. Webs that are
+   * read before the program writes them keep their address.
+   *
+   * @param removed
+   *          Receives the copies that will copy an address to itself
+   * @return The number of the scratch address of each node's web, or null if
+   *         there are too few
+   */
+  private int[] color(ControlFlowGraph graph, Set<Command> removed) {
+    HashMap<Integer, HashSet<Integer>> neighbors =
+        new HashMap<Integer, HashSet<Integer>>();
+    for (int[] conflict : conflicts) {
+      int a = find(conflict[0]);
+      int b = find(conflict[1]);
+      if (a != b) {
+        neighbors.computeIfAbsent(a, k -> new HashSet<Integer>()).add(b);
+        neighbors.computeIfAbsent(b, k -> new HashSet<Integer>()).add(a);
+      }
+    }
+    HashMap<Integer, Integer> fixed = new HashMap<Integer, Integer>();
+    int[] start = entry.get(graph.blocks.get(0));
+    for (int s = 0; s < start.length; s++) {
+      if (start[s] >= 0) {
+        fixed.put(find(start[s]), s);
+      }
+    }
+    for (BasicBlock b : graph.blocks) {
+      for (Command c : b.code) {
+        int[] occurrence = occurrences.get(c);
+        if (copySource(c) < 0 || removed.contains(c)) {
+          continue;
+        }
+        int from = find(occurrence[1]);
+        int to = find(occurrence[3]);
+        if (from != to && (neighbors.containsKey(from)
+            && neighbors.get(from).contains(to)
+            || fixed.containsKey(from) && fixed.containsKey(to))) {
+          continue;
+        }
+        if (from != to) {
+          merge(from, to, neighbors, fixed);
+        }
+        removed.add(c);
+      }
+    }
+    int count = liveness.scratch.length;
+    int[] res = new int[nodes];
+    HashMap<Integer, Integer> colors = new HashMap<Integer, Integer>(fixed);
+    for (int n = 0; n < nodes; n++) {
+      int web = find(n);
+      Integer color = colors.get(web);
+      if (color == null) {
+        BitSet taken = new BitSet();
+        for (int other : neighbors.getOrDefault(web,
+            new HashSet<Integer>())) {
+          Integer c = colors.get(other);
+          if (c != null) {
+            taken.set(c);
+          }
+        }
+        color = taken.nextClearBit(0);
+        if (color >= count) {
+          return null;
+        }
+        colors.put(web, color);
+      }
+      res[n] = color;
+    }
+    return res;
+  }
+
+  /**
+   * Joins web a into web b, along with what they interfere with
+   */
+  private void merge(int a, int b, HashMap<Integer, HashSet<Integer>> neighbors,
+      HashMap<Integer, Integer> fixed) {
+    union(a, b);
+    HashSet<Integer> moved = neighbors.remove(a);
+    if (moved != null) {
+      HashSet<Integer> into = neighbors.computeIfAbsent(b,
+          k -> new HashSet<Integer>());
+      for (int other : moved) {
+        HashSet<Integer> back = neighbors.get(other);
+        back.remove(a);
+        back.add(b);
+        into.add(other);
+      }
+    }
+    Integer color = fixed.remove(a);
+    if (color != null) {
+      fixed.put(b, color);
+    }
+  }
+
+  /**
+   * Gives every scratch argument the address of its web, and turns the
+   * commands that are no longer needed into nops, which the
+   * DeadCodeEliminator removes
+   *
+   * @return Whether anything was changed
+   */
+  private boolean rewrite(ControlFlowGraph graph, int[] color,
+      Set<Command> removed) {
+    boolean res = false;
+    for (BasicBlock b : graph.blocks) {
+      for (int i = 0; i < b.code.size(); i++) {
+        Command c = b.code.get(i);
+        if (removed.contains(c)) {
+          b.code.set(i, PeepholeOptimizer.nop(c));
+          res = true;
+          continue;
+        }
+        int[] occurrence = occurrences.get(c);
+        Arg arg1 = place(c.arg1, occurrence[0], color);
+        Arg arg2 = place(c.arg2, occurrence[1], color);
+        Arg arg3 = place(c.arg3, Math.max(occurrence[2], occurrence[3]),
+            color);
+        res |= arg1 != c.arg1 || arg2 != c.arg2 || arg3 != c.arg3;
+        c.arg1 = arg1;
+        c.arg2 = arg2;
+        c.arg3 = arg3;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return The argument, or a copy of it with the address of its web
+   */
+  private Arg place(Arg a, int occurrence, int[] color) {
+    if (occurrence < 0) {
+      return a;
+    }
+    int address = liveness.scratch[color[occurrence]];
+    if (a.val == address) {
+      return a;
+    }
+    Arg res = a.dup();
+    res.val = address;
+    return res;
+  }
+}
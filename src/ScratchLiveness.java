@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+
+/**
+ * The scratch addresses whose values may still be read at the start of each
+ * basic block, found by solving backwards from the uses. Scratch addresses
+ * belong to the statement being compiled, which only ever accesses them
+ * directly, so no pointer refers to one and their liveness can be found from
+ * the arguments alone.
+ *
+ * Addresses are numbered by their position in the sorted list of scratch
+ * addresses.
+ */
+public class ScratchLiveness {
+
+  // scratch addresses, sorted
+  final int[] scratch;
+  private final IdentityHashMap<BasicBlock, BitSet> liveIn =
+      new IdentityHashMap<BasicBlock, BitSet>();
+
+  ScratchLiveness(int[] scratch) {
+    this.scratch = scratch.clone();
+    Arrays.sort(this.scratch);
+  }
+
+  /**
+   * Finds the live scratch addresses of every block of a graph, replacing
+   * those of any graph solved before
+   */
+  void solve(ControlFlowGraph graph) {
+    liveIn.clear();
+    for (BasicBlock b : graph.blocks) {
+      liveIn.put(b, new BitSet());
+    }
+    liveIn.put(graph.exit, new BitSet());
+    liveIn.put(graph.indirect, new BitSet());
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      liveIn.put(graph.indirect, liveOut(graph.indirect));
+      for (int k = graph.blocks.size() - 1; k >= 0; k--) {
+        BasicBlock b = graph.blocks.get(k);
+        BitSet live = liveOut(b);
+        for (int i = b.code.size() - 1; i >= 0; i--) {
+          transfer(b.code.get(i), live);
+        }
+        if (!live.equals(liveIn.get(b))) {
+          liveIn.put(b, live);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The scratch addresses live at the start of a block, which must
+   *         not be changed
+   */
+  BitSet liveIn(BasicBlock b) {
+    return liveIn.get(b);
+  }
+
+  /**
+   * @return A new set of the scratch addresses live at the end of a block
+   */
+  BitSet liveOut(BasicBlock b) {
+    BitSet res = new BitSet();
+    for (BasicBlock s : b.successors) {
+      res.or(liveIn.get(s));
+    }
+    return res;
+  }
+
+  /**
+   * Changes the scratch addresses live after a command to those live before
+   * it
+   */
+  void transfer(Command c, BitSet live) {
+    int written = written(c);
+    if (written >= 0 && c.alwaysMoves()) {
+      live.clear(written);
+    }
+    for (Arg a : new Arg[] { c.arg1, c.arg2, c.arg3 }) {
+      int read = read(a);
+      if (read >= 0) {
+        live.set(read);
+      }
+    }
+  }
+
+  /**
+   * @return Number of the scratch address a command writes directly, or -1
+   */
+  int written(Command c) {
+    return c.arg3.mode == 0 && !c.neverMoves() ? index(c.arg3.val) : -1;
+  }
+
+  /**
+   * @return Number of the scratch address an argument reads, or -1
+   */
+  int read(Arg a) {
+    return a.mode > 0 ? index(a.val) : -1;
+  }
+
+  /**
+   * @return Number of a scratch address, or -1 for any other address
+   */
+  int index(int address) {
+    int res = Arrays.binarySearch(scratch, address);
+    return res < 0 ? -1 : res;
+  }
+}
@@ -0,0 +1,296 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Runs QFTASM programs one cycle per command. RAM holds 65536 16-bit words,
+ * and address 0 is the program counter. A command that writes to the program
+ * counter takes effect after one delay slot: the next command in ROM still
+ * runs, and execution then continues one past the address written, which is
+ * what adjustJumps() compiles for. The program halts when execution leaves
+ * the ROM.
+ */
+public class Simulator {
+
+  static final int RAM_SIZE = 1 << 16;
+  static final int WORD = 0xFFFF;
+
+  final PackedROM ROM;
+  final int[] RAM = new int[RAM_SIZE];
+  long cycles = 0;
+  boolean halted = false;
+  // index of the command to run next, and of the one after it
+  int current = 0;
+  int next = 1;
+  // writes to the display are counted, and printed if trace is set
+  int displayAddress = 1;
+  long displayWrites = 0;
+  PrintStream trace;
+  // told of every cycle, if set
+  Profiler profiler;
+
+  Simulator(PackedROM ROM) {
+    this.ROM = ROM;
+  }
+
+  /**
+   * Runs until the program halts or the limit is reached
+   *
+   * @param limit
+   *          Most cycles to run
+   * @return Cycles run by this call
+   */
+  long run(long limit) {
+    long[] code = ROM.code;
+    long start = cycles;
+    long end = cycles + limit;
+    while (cycles < end) {
+      if (current < 0 || current >= code.length) {
+        halted = true;
+        break;
+      }
+      if (ROM.isIrregular(current)) {
+        throw new IllegalStateException("cannot run command " + current
+            + ": " + ROM.appendTo(new StringBuilder(), current));
+      }
+      long c = code[current];
+      RAM[0] = current;
+      boolean jumped = execute(c);
+      int following = jumped ? RAM[0] + 1 : next + 1;
+      if (profiler != null) {
+        profiler.executed(current, jumped ? following : -1);
+      }
+      current = next;
+      next = following;
+      cycles++;
+    }
+    return cycles - start;
+  }
+
+  /**
+   * @param c
+   *          A packed command
+   * @return Whether it wrote to the program counter
+   */
+  boolean execute(long c) {
+    int a = read(PackedROM.mode(c, 1), PackedROM.value(c, 1));
+    int b = read(PackedROM.mode(c, 2), PackedROM.value(c, 2));
+    int result;
+    switch (PackedROM.opcode(c)) {
+    case MNZ:
+      if (a == 0) {
+        return false;
+      }
+      result = b;
+      break;
+    case MLZ:
+      if ((a & 0x8000) == 0) {
+        return false;
+      }
+      result = b;
+      break;
+    case ADD:
+      result = a + b;
+      break;
+    case SUB:
+      result = a - b;
+      break;
+    case AND:
+      result = a & b;
+      break;
+    case OR:
+      result = a | b;
+      break;
+    case XOR:
+      result = a ^ b;
+      break;
+    case ANT:
+      result = a & ~b;
+      break;
+    case SL:
+      result = a << (b & 15);
+      break;
+    case SRL:
+      result = a >>> (b & 15);
+      break;
+    case SRA:
+      result = (short) a >> (b & 15);
+      break;
+    default:
+      throw new IllegalStateException("unknown opcode in " + c);
+    }
+    // a destination is dereferenced one level less than a source, which the
+    // compiler has already accounted for in its mode
+    int dest = read(PackedROM.mode(c, 3), PackedROM.value(c, 3));
+    RAM[dest] = result & WORD;
+    if (dest == displayAddress) {
+      displayWrites++;
+      if (trace != null) {
+        trace.println(cycles + ": " + RAM[dest]);
+      }
+    }
+    return dest == 0;
+  }
+
+  /**
+   * @return The value of a source argument
+   */
+  int read(int mode, int val) {
+    int res = val & WORD;
+    for (int i = 0; i < mode; i++) {
+      res = RAM[res];
+    }
+    return res;
+  }
+
+  /**
+   * Reads a QFTASM listing, one command per line, each optionally numbered
+   * and followed by labels after the semicolon
+   *
+   * @param in
+   *          The listing
+   * @return The commands, packed
+   * @throws IOException
+   *           if a line cannot be parsed
+   */
+  static PackedROM load(BufferedReader in) throws IOException {
+    SymbolTable symbols = new SymbolTable();
+    ArrayList<Long> code = new ArrayList<Long>();
+    ArrayList<Symbol[]> tags = new ArrayList<Symbol[]>();
+    String line;
+    int lineNumber = 0;
+    while ((line = in.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      int semicolon = line.indexOf(';');
+      if (semicolon < 0) {
+        throw new IOException("line " + lineNumber + ": missing ;");
+      }
+      String[] words = line.substring(0, semicolon).trim().split("\\s+");
+      int first = words[0].endsWith(".") ? 1 : 0;
+      if (words.length - first != 4) {
+        throw new IOException("line " + lineNumber + ": expected an opcode"
+            + " and three arguments: " + line);
+      }
+      try {
+        Opcode op = Opcode.valueOf(words[first].toUpperCase());
+        int[] modes = new int[3];
+        int[] vals = new int[3];
+        for (int i = 0; i < 3; i++) {
+          String arg = words[first + 1 + i].toUpperCase();
+          char prefix = arg.charAt(0);
+          if (prefix >= 'A' && prefix <= 'C') {
+            modes[i] = prefix - 'A' + 1;
+            arg = arg.substring(1);
+          }
+          vals[i] = Integer.parseInt(arg);
+        }
+        code.add(PackedROM.pack(op, modes[0], vals[0], modes[1], vals[1],
+            modes[2], vals[2]));
+      } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+        throw new IOException("line " + lineNumber + ": " + e.getMessage());
+      }
+      String[] labels = line.substring(semicolon + 1).trim().split("\\s+");
+      int count = labels[0].isEmpty() ? 0 : labels.length;
+      Symbol[] lineTags = new Symbol[count];
+      for (int i = 0; i < lineTags.length; i++) {
+        lineTags[i] = symbols.intern(labels[i]);
+      }
+      tags.add(lineTags);
+    }
+    long[] packed = new long[code.size()];
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] = code.get(i);
+    }
+    return new PackedROM(packed, tags.toArray(new Symbol[tags.size()][]));
+  }
+
+  /**
+   * Runs a program and prints how many cycles it took
+   *
+   * @param file
+   *          A QFTASM listing, or a Cogol source ending in .cgl, which is
+   *          compiled first
+   * @param limit
+   *          Most cycles to run
+   * @param trace
+   *          Whether to print every write to the display
+   * @param interpret
+   *          Whether to use this simulator rather than FastSimulator
+   * @param profile
+   *          File to write collapsed stacks to, after printing a profile of
+   *          the run, or null not to profile
+   * @return Whether the program could be run
+   * @throws IOException
+   */
+  public static boolean run(String file, long limit, boolean trace,
+      boolean interpret, String profile) throws IOException {
+    PackedROM ROM;
+    // source position of each command, if known
+    SourcePosition[] sources = null;
+    if (file.endsWith(".cgl")) {
+      try (FileReader in = new FileReader(file)) {
+        Program program = new CompilationContext().compile(in);
+        ROM = program.ROM;
+        sources = program.sources;
+      }
+    } else {
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+        ROM = load(in);
+      } catch (IOException e) {
+        System.err.println("error: " + file + ": " + e.getMessage());
+        return false;
+      }
+      String map = Program.sourceMapFile(file);
+      if (profile != null && new File(map).isFile()) {
+        try (BufferedReader in = new BufferedReader(new FileReader(map))) {
+          sources = SourcePosition.read(in, ROM.size());
+        } catch (IOException e) {
+          System.err.println("warning: " + map + ": " + e.getMessage());
+        }
+      }
+    }
+    // only this simulator reports every cycle
+    Simulator sim = interpret || profile != null ? new Simulator(ROM)
+        : new FastSimulator(ROM);
+    if (profile != null) {
+      sim.profiler = new Profiler(ROM, sources);
+    }
+    if (trace) {
+      sim.trace = System.out;
+    }
+    long start = System.nanoTime();
+    try {
+      sim.run(limit);
+    } catch (IllegalStateException e) {
+      System.err.println("error: " + e.getMessage());
+      return false;
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%s after %d cycles, %d display writes, display = %d%n",
+        sim.halted ? "halted" : "stopped", sim.cycles, sim.displayWrites,
+        sim.RAM[sim.displayAddress]);
+    System.out.printf("%.2f ms, %.1f million cycles per second%n",
+        elapsed / 1e6, sim.cycles / (elapsed / 1e3));
+    if (profile != null) {
+      System.out.println();
+      sim.profiler.writeFlat(System.out);
+      System.out.println();
+      if (sources != null) {
+        sim.profiler.writeLines(System.out);
+        System.out.println();
+      }
+      sim.profiler.writeTree(System.out);
+      try (PrintStream out = new PrintStream(profile)) {
+        sim.profiler.writeCollapsed(out);
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,117 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Objects;
+
+/**
+ * Where a command came from: the line and column of the statement it was
+ * compiled from, and the subroutine and block that statement is in. Every
+ * command of a statement shares one position.
+ *
+ * A source map lists the position of each ROM address, one line per run of
+ * addresses with the same position, as the first address of the run
+ * followed by the line, column, subroutine and block, with - for none.
+ */
+public class SourcePosition {
+
+  static final String HEADER = "cogol-srcmap 1";
+  static final String NONE = "-";
+
+  final int line;
+  final int column;
+  // innermost subroutine and block around the statement, or null
+  final String sub;
+  final String loop;
+
+  SourcePosition(int line, int column, String sub, String loop) {
+    this.line = line;
+    this.column = column;
+    this.sub = sub;
+    this.loop = loop;
+  }
+
+  /**
+   * @param map
+   *          The position of each ROM address, or null where it has none
+   * @param out
+   *          Destination of the source map
+   * @throws IOException
+   */
+  static void write(SourcePosition[] map, Writer out) throws IOException {
+    out.write(HEADER + "\n");
+    for (int i = 0; i < map.length; i++) {
+      if (i > 0 && Objects.equals(map[i], map[i - 1])) {
+        continue;
+      }
+      out.write(i + " " + (map[i] == null ? NONE : map[i].toString()) + "\n");
+    }
+  }
+
+  /**
+   * @param in
+   *          A source map
+   * @param size
+   *          Number of commands in the ROM it describes
+   * @return The position of each ROM address, or null where it has none
+   * @throws IOException
+   *           if the map cannot be parsed
+   */
+  static SourcePosition[] read(BufferedReader in, int size)
+      throws IOException {
+    if (!HEADER.equals(in.readLine())) {
+      throw new IOException("not a source map");
+    }
+    SourcePosition[] res = new SourcePosition[size];
+    String line;
+    int lineNumber = 1;
+    int from = -1;
+    SourcePosition current = null;
+    while ((line = in.readLine()) != null) {
+      lineNumber++;
+      String[] words = line.trim().split(" ");
+      try {
+        int start = Integer.parseInt(words[0]);
+        for (int i = Math.max(from, 0); i < Math.min(start, size); i++) {
+          res[i] = current;
+        }
+        from = start;
+        if (words.length == 2 && words[1].equals(NONE)) {
+          current = null;
+        } else if (words.length == 5) {
+          current = new SourcePosition(Integer.parseInt(words[1]),
+              Integer.parseInt(words[2]), name(words[3]), name(words[4]));
+        } else {
+          throw new IOException("line " + lineNumber + ": " + line);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException("line " + lineNumber + ": " + line);
+      }
+    }
+    for (int i = Math.max(from, 0); i < size; i++) {
+      res[i] = current;
+    }
+    return res;
+  }
+
+  private static String name(String word) {
+    return word.equals(NONE) ? null : word;
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof SourcePosition)) {
+      return false;
+    }
+    SourcePosition p = (SourcePosition) o;
+    return line == p.line && column == p.column && Objects.equals(sub, p.sub)
+        && Objects.equals(loop, p.loop);
+  }
+
+  public int hashCode() {
+    return Objects.hash(line, column, sub, loop);
+  }
+
+  public String toString() {
+    return line + " " + column + " " + (sub == null ? NONE : sub) + " "
+        + (loop == null ? NONE : loop);
+  }
+}
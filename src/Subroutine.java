@@ -4,7 +4,9 @@ import java.util.Map;
 
 public class Subroutine {
 
+  final CompilationContext context;
   String name;
+  final Symbol symbol;
   final Map<String, Integer> address = new HashMap<String, Integer>();
   int firstFreeRAM = 0;
   final Map<String, String> type = new HashMap<String, String>();
@@ -13,8 +15,10 @@ public class Subroutine {
   final ArrayList<String> args = new ArrayList<String>();
   final OpenLoop loop;
 
-  Subroutine(String name, OpenLoop loop) {
+  Subroutine(CompilationContext context, String name, OpenLoop loop) {
+    this.context = context;
     this.name = name;
+    this.symbol = context.symbols.intern(name);
     this.loop = loop;
     createWord("return");
     createWord("previous_call");
@@ -51,7 +55,7 @@ public class Subroutine {
     ArrayList<Command> ROMpredefs = new ArrayList<Command>();
     inits.add(ROMpredefs);
     setRAM(firstFreeRAM, varname);
-    type.put(varname, Compiler.wordType);
+    type.put(varname, CompilationContext.wordType);
     firstFreeRAM++;
   }
 
@@ -60,11 +64,12 @@ public class Subroutine {
     ArrayList<Command> ROMpredefs = new ArrayList<Command>();
     inits.add(ROMpredefs);
     setRAM(firstFreeRAM, varname);
-    type.put(varname, Compiler.wordType);
-    ROMpredefs.add(new Command("ADD", new Arg(1, name, 0),
-        new Arg(firstFreeRAM), new Arg(Compiler.CallStackPointer, 0)));
-    ROMpredefs.add(new Command("MLZ", new Arg(-1), new Arg(data),
-        new Arg(1, Compiler.CallStackPointer, 0)));
+    type.put(varname, CompilationContext.wordType);
+    ROMpredefs.add(new Command(Opcode.ADD, new Arg(1, symbol, 0),
+        new Arg(firstFreeRAM),
+        new Arg(context.callStack, 0)));
+    ROMpredefs.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(data),
+        new Arg(1, context.callStack, 0)));
     firstFreeRAM++;
   }
 
@@ -79,16 +84,18 @@ public class Subroutine {
     ArrayList<Command> ROMpredefs = new ArrayList<Command>();
     inits.add(ROMpredefs);
     setRAM(firstFreeRAM, varname);
-    type.put(varname, Compiler.arrayType);
+    type.put(varname, CompilationContext.arrayType);
     firstFreeRAM++;
     for (int i = 0; i < size; i++) {
       setRAM(firstFreeRAM, varname + "[" + i + "]");
       firstFreeRAM++;
     }
-    ROMpredefs.add(new Command("ADD", new Arg(1, name, 0),
-        new Arg(address.get(varname)), new Arg(Compiler.CallStackPointer, 0)));
-    ROMpredefs.add(new Command("ADD", new Arg(1, Compiler.CallStackPointer, 0),
-        new Arg(1), new Arg(1, Compiler.CallStackPointer, 0)));
+    ROMpredefs.add(new Command(Opcode.ADD, new Arg(1, symbol, 0),
+        new Arg(address.get(varname)),
+        new Arg(context.callStack, 0)));
+    ROMpredefs.add(
+        new Command(Opcode.ADD, new Arg(1, context.callStack, 0),
+            new Arg(1), new Arg(1, context.callStack, 0)));
   }
 
   /**
@@ -104,16 +111,17 @@ public class Subroutine {
     ArrayList<Command> ROMpredefs = new ArrayList<Command>();
     inits.add(ROMpredefs);
     setRAM(firstFreeRAM, varname);
-    type.put(varname, Compiler.arrayType);
+    type.put(varname, CompilationContext.arrayType);
     firstFreeRAM++;
     for (int i = 0; i < size; i++) {
       setRAM(firstFreeRAM, varname + "[" + i + "]");
       if (data.size() > 0) {
         int datum = data.remove(0);
-        ROMpredefs.add(new Command("ADD", new Arg(1, name, 0),
-            new Arg(firstFreeRAM), new Arg(Compiler.CallStackPointer, 0)));
-        ROMpredefs.add(new Command("MLZ", new Arg(-1), new Arg(datum),
-            new Arg(1, Compiler.CallStackPointer, 0)));
+        ROMpredefs.add(new Command(Opcode.ADD, new Arg(1, symbol, 0),
+            new Arg(firstFreeRAM),
+            new Arg(context.callStack, 0)));
+        ROMpredefs.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(datum),
+            new Arg(1, context.callStack, 0)));
       }
       firstFreeRAM++;
     }
@@ -123,75 +131,77 @@ public class Subroutine {
       setRAM(marker, varname + "[" + index + "]");
       int datum = data.remove(0);
       if (datum != 0) {
-        ROMpredefs.add(new Command("ADD", new Arg(1, name, 0), new Arg(marker),
-            new Arg(Compiler.CallStackPointer, 0)));
-        ROMpredefs.add(new Command("MLZ", new Arg(-1), new Arg(datum),
-            new Arg(1, Compiler.CallStackPointer, 0)));
+        ROMpredefs.add(new Command(Opcode.ADD, new Arg(1, symbol, 0),
+            new Arg(marker), new Arg(context.callStack, 0)));
+        ROMpredefs.add(new Command(Opcode.MLZ, new Arg(-1), new Arg(datum),
+            new Arg(1, context.callStack, 0)));
       }
       marker++;
       index++;
     }
-    ROMpredefs.add(new Command("ADD", new Arg(1, name, 0),
-        new Arg(address.get(varname)), new Arg(Compiler.CallStackPointer, 0)));
-    ROMpredefs.add(new Command("ADD", new Arg(1, Compiler.CallStackPointer, 0),
-        new Arg(1), new Arg(1, Compiler.CallStackPointer, 0)));
+    ROMpredefs.add(new Command(Opcode.ADD, new Arg(1, symbol, 0),
+        new Arg(address.get(varname)),
+        new Arg(context.callStack, 0)));
+    ROMpredefs.add(
+        new Command(Opcode.ADD, new Arg(1, context.callStack, 0),
+            new Arg(1), new Arg(1, context.callStack, 0)));
   }
 
-  public static String rmStatement(ArrayList<String> tokens) {
+  public static String rmStatement(TokenStream tokens) {
     String res = "";
-    while (tokens.size() > 0 && !tokens.get(0).equals(",")
-        && !tokens.get(0).equals(")")) {
-      res += " " + tokens.remove(0);
+    while (tokens.hasNext() && !tokens.peek().equals(",")
+        && !tokens.peek().equals(")")) {
+      res += " " + tokens.next();
     }
-    if (tokens.size() > 0
-        && (tokens.get(0).equals(",") || tokens.get(0).equals(")"))) {
-      res += " " + tokens.remove(0);
+    if (tokens.hasNext()
+        && (tokens.peek().equals(",") || tokens.peek().equals(")"))) {
+      res += " " + tokens.next();
     }
     return res;
   }
 
-  void compileDef(ArrayList<String> tokens) {
+  void compileDef(TokenStream tokens) {
     ArrayList<Command> ROM = new ArrayList<Command>();
-    String name = tokens.remove(0);
+    String name = tokens.next();
     if (address.containsKey(name)) {
-      System.err.println("error: my " + name + rmStatement(tokens));
-    } else if (Compiler.reserved.contains(name)) {
-      System.err
-          .println("error: reserved name at " + name + rmStatement(tokens));
+      context.err.println("error: my " + name + rmStatement(tokens));
+    } else if (context.reserved.contains(name)) {
+      context.err.println(
+          "error: reserved name at " + name + rmStatement(tokens));
     } else {
-      String type = tokens.remove(0);
+      String type = tokens.next();
       if (type.equals("[")) {
-        Integer size = Integer.parseInt(tokens.remove(0));
-        tokens.remove(0); // ]
-        String eq = tokens.remove(0); // ; or =
+        Integer size = Integer.parseInt(tokens.next());
+        tokens.next(); // ]
+        String eq = tokens.next(); // ; or =
         if (eq.equals("=")) {
-          tokens.remove(0); // {
+          tokens.next(); // {
           ArrayList<Integer> inits = new ArrayList<Integer>();
-          Arg init = Compiler.compileRef(ROM, false);
-          String div = tokens.remove(0);
+          Arg init = context.compileRef(ROM, false);
+          String div = tokens.next();
           while (div.equals(",")) {
             if (init.mode == 0) {
               inits.add(init.val);
             } else {
               inits.add(null);
-              System.err.println("Error: non-constant initilizer at my " + name
+              context.err.println("Error: non-constant initilizer at my " + name
                   + "[" + size + "] = ... " + init);
             }
-            init = Compiler.compileRef(ROM, false);
-            div = tokens.remove(0);
+            init = context.compileRef(ROM, false);
+            div = tokens.next();
           }
           if (div.equals("}")) {
             if (init.mode == 0) {
               inits.add(init.val);
             } else {
               inits.add(null);
-              System.err.println("Error: non-constant initilizer at my " + name
+              context.err.println("Error: non-constant initilizer at my " + name
                   + "[" + size + "] = ... " + init);
             }
             createArray(name, size, inits);
-            tokens.remove(0); // ;
+            tokens.next(); // ;
           } else {
-            System.err.println("Error: invalid initilizer at my " + name + "["
+            context.err.println("Error: invalid initilizer at my " + name + "["
                 + size + "] = ... " + init + rmStatement(tokens));
             createArray(name, size, inits);
           }
@@ -201,19 +211,19 @@ public class Subroutine {
       } else if (type.equals(",") || type.equals(")")) {
         createWord(name);
       } else if (type.equals("=")) {
-        Arg init = Compiler.compileRef(ROM, false);
+        Arg init = context.compileRef(ROM, false);
         if (init.mode == 0
-            && (tokens.get(0).equals(",") || tokens.get(0).equals(")"))) {
+            && (tokens.peek().equals(",") || tokens.peek().equals(")"))) {
           createWord(name, init.val);
-          tokens.remove(0); // ;
+          tokens.next(); // ;
         } else {
           createWord(name);
-          System.err.println("Error: non-constant initilizer at my " + name
+          context.err.println("Error: non-constant initilizer at my " + name
               + " = " + init + rmStatement(tokens));
         }
       } else {
-        System.err
-            .println("error: my " + name + " " + type + rmStatement(tokens));
+        context.err.println(
+            "error: my " + name + " " + type + rmStatement(tokens));
       }
     }
   }
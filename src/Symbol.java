@@ -0,0 +1,19 @@
+/**
+ * An interned name: a label in ROM or a tag referring to RAM. Symbols of one
+ * SymbolTable are unique by name, so they compare by identity, and their
+ * dense IDs index the arrays the linker resolves them through.
+ */
+public class Symbol {
+
+  final String name;
+  final int id;
+
+  Symbol(String name, int id) {
+    this.name = name;
+    this.id = id;
+  }
+
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,47 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the labels and tag names of one compilation, numbering them densely
+ * from 0 in order of first use.
+ */
+public class SymbolTable {
+
+  private final Map<String, Symbol> byName = new HashMap<String, Symbol>();
+  private final ArrayList<Symbol> byId = new ArrayList<Symbol>();
+
+  /**
+   * @param name
+   *          Label or tag name, or null
+   * @return The one symbol with that name, or null for null
+   */
+  Symbol intern(String name) {
+    if (name == null) {
+      return null;
+    }
+    Symbol res = byName.get(name);
+    if (res == null) {
+      res = new Symbol(name, byId.size());
+      byName.put(name, res);
+      byId.add(res);
+    }
+    return res;
+  }
+
+  /**
+   * @param id
+   *          ID of a previously interned symbol
+   * @return That symbol
+   */
+  Symbol get(int id) {
+    return byId.get(id);
+  }
+
+  /**
+   * @return Number of symbols, one more than the largest ID
+   */
+  int size() {
+    return byId.size();
+  }
+}
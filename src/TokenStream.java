@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+
+/**
+ * A cursor over a compact array of tokens. Tokens are appended by the
+ * tokenizer and consumed by the parser without shifting the array, so parsing
+ * is linear in the length of the program. A position can be saved with mark()
+ * and returned to with rewind(), which is how deferred call statements are
+ * replayed.
+ */
+public class TokenStream {
+
+  enum Kind {
+    IDENTIFIER, INTEGER, OPERATOR, PUNCTUATION
+  }
+
+  private String[] tokens = new String[256];
+  private Kind[] kinds = new Kind[256];
+  // source position of the first character of each token, counted from 1
+  private int[] lines = new int[256];
+  private int[] columns = new int[256];
+  private int size = 0;
+  private int pos = 0;
+
+  /**
+   * @param token
+   *          Token to append to the end of the stream
+   * @param kind
+   *          Lexical class of the token
+   * @param line
+   *          Source line of the token's first character
+   * @param column
+   *          Source column of the token's first character
+   */
+  void add(String token, Kind kind, int line, int column) {
+    if (size == tokens.length) {
+      int length = tokens.length * 2;
+      String[] grownTokens = new String[length];
+      Kind[] grownKinds = new Kind[length];
+      int[] grownLines = new int[length];
+      int[] grownColumns = new int[length];
+      System.arraycopy(tokens, 0, grownTokens, 0, size);
+      System.arraycopy(kinds, 0, grownKinds, 0, size);
+      System.arraycopy(lines, 0, grownLines, 0, size);
+      System.arraycopy(columns, 0, grownColumns, 0, size);
+      tokens = grownTokens;
+      kinds = grownKinds;
+      lines = grownLines;
+      columns = grownColumns;
+    }
+    tokens[size] = token;
+    kinds[size] = kind;
+    lines[size] = line;
+    columns[size] = column;
+    size++;
+  }
+
+  /**
+   * @return Total number of tokens, consumed or not
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param index
+   *          Absolute index of a token
+   * @return The token at that index
+   */
+  String get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("token " + index + " of " + size);
+    }
+    return tokens[index];
+  }
+
+  /**
+   * @param index
+   *          Absolute index of a token
+   * @return The lexical class of the token at that index
+   */
+  Kind kind(int index) {
+    get(index);
+    return kinds[index];
+  }
+
+  /**
+   * @param index
+   *          Absolute index of a token
+   * @return The source line of the token at that index
+   */
+  int line(int index) {
+    get(index);
+    return lines[index];
+  }
+
+  /**
+   * @param index
+   *          Absolute index of a token
+   * @return The source column of the token at that index
+   */
+  int column(int index) {
+    get(index);
+    return columns[index];
+  }
+
+  /**
+   * @return The most recently appended token
+   */
+  String last() {
+    return get(size - 1);
+  }
+
+  /**
+   * @param token
+   *          Replacement for the most recently appended token
+   */
+  void setLast(String token) {
+    get(size - 1);
+    tokens[size - 1] = token;
+  }
+
+  /**
+   * @return The most recently appended token, which is removed
+   */
+  String removeLast() {
+    String res = get(size - 1);
+    tokens[--size] = null;
+    kinds[size] = null;
+    return res;
+  }
+
+  /**
+   * @return Whether any tokens remain to be consumed
+   */
+  boolean hasNext() {
+    return pos < size;
+  }
+
+  /**
+   * @return The next token, without consuming it
+   */
+  String peek() {
+    return get(pos);
+  }
+
+  /**
+   * @param ahead
+   *          How many tokens to look past the next one
+   * @return The token at that distance, without consuming anything
+   */
+  String peek(int ahead) {
+    return get(pos + ahead);
+  }
+
+  /**
+   * @return The next token, which is consumed
+   */
+  String next() {
+    return get(pos++);
+  }
+
+  /**
+   * @return The current position, to be handed back to rewind()
+   */
+  int mark() {
+    return pos;
+  }
+
+  /**
+   * @param mark
+   *          A position previously returned by mark()
+   */
+  void rewind(int mark) {
+    pos = mark;
+  }
+
+  /**
+   * @param from
+   *          Absolute index of the first token
+   * @param to
+   *          Absolute index one past the last token
+   * @return A copy of the tokens in that range
+   */
+  ArrayList<String> slice(int from, int to) {
+    ArrayList<String> res = new ArrayList<String>(to - from);
+    for (int i = from; i < to; i++) {
+      res.add(get(i));
+    }
+    return res;
+  }
+
+  public String toString() {
+    StringBuilder res = new StringBuilder("[");
+    for (int i = pos; i < size; i++) {
+      if (i > pos) {
+        res.append(", ");
+      }
+      res.append(tokens[i]);
+    }
+    return res.append("]").toString();
+  }
+}